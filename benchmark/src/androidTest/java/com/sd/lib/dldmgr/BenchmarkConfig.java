@@ -0,0 +1,44 @@
+package com.sd.lib.dldmgr;
+
+import android.content.Context;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.io.File;
+
+/**
+ * 基准测试的公共配置
+ */
+public final class BenchmarkConfig
+{
+    private static boolean sInit;
+
+    private BenchmarkConfig()
+    {
+    }
+
+    /**
+     * 初始化下载器配置，关闭日志避免影响测量结果
+     */
+    public static synchronized void init()
+    {
+        if (sInit)
+            return;
+
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        DownloadManagerConfig.init(new DownloadManagerConfig.Builder()
+                .setDownloadDirectory(getDirectory().getAbsolutePath())
+                .setDebug(false)
+                .build(context));
+        sInit = true;
+    }
+
+    /**
+     * 基准测试使用的目录
+     */
+    public static File getDirectory()
+    {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        return new File(context.getCacheDir(), "benchmark");
+    }
+}
@@ -0,0 +1,30 @@
+package com.sd.lib.dldmgr;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class DownloadInfoBenchmark
+{
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void copy()
+    {
+        final DownloadInfo info = new DownloadInfo("http://127.0.0.1/benchmark.apk");
+        info.getTransmitParam().transmit(100L * 1024 * 1024, 50L * 1024 * 1024);
+
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            // internal方法在字节码中的名称带有模块名后缀
+            info.copy$com_sd_lib_android_download_manager();
+        }
+    }
+}
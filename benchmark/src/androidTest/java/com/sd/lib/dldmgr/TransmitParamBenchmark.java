@@ -0,0 +1,48 @@
+package com.sd.lib.dldmgr;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class TransmitParamBenchmark
+{
+    private static final long TOTAL = 100L * 1024 * 1024;
+    private static final long STEP = 64 * 1024;
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void transmit()
+    {
+        final TransmitParam param = new TransmitParam();
+        final BenchmarkState state = mBenchmarkRule.getState();
+
+        long current = 0;
+        while (state.keepRunning())
+        {
+            current += STEP;
+            if (current > TOTAL)
+                current = STEP;
+            param.transmit(TOTAL, current);
+        }
+    }
+
+    @Test
+    public void copy()
+    {
+        final TransmitParam param = new TransmitParam();
+        param.transmit(TOTAL, TOTAL / 2);
+
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            param.copy();
+        }
+    }
+}
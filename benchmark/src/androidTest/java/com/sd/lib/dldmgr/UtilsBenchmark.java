@@ -0,0 +1,28 @@
+package com.sd.lib.dldmgr;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class UtilsBenchmark
+{
+    private static final String URL = "https://dldir1.qq.com/weixin/android/weixin8006android1900_arm64.apk?from=benchmark&t=1621843200";
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void md5()
+    {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            Utils.INSTANCE.md5(URL);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.sd.lib.dldmgr.directory;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.sd.lib.dldmgr.BenchmarkConfig;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+@RunWith(AndroidJUnit4.class)
+public class DownloadDirectoryBenchmark
+{
+    private static final String URL = "https://dldir1.qq.com/weixin/android/weixin8006android1900_arm64.apk";
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void newUrlFile()
+    {
+        final DownloadDirectory directory = DownloadDirectory.from(BenchmarkConfig.getDirectory());
+
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            // internal方法在字节码中的名称带有模块名后缀
+            directory.newUrlFile$com_sd_lib_android_download_manager(URL);
+        }
+    }
+
+    @Test
+    public void getFileHit()
+    {
+        final DownloadDirectory directory = DownloadDirectory.from(BenchmarkConfig.getDirectory());
+        final File file = directory.newUrlFile$com_sd_lib_android_download_manager(URL);
+        try
+        {
+            file.createNewFile();
+        } catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        directory.notifyFileChanged$com_sd_lib_android_download_manager(file);
+
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            directory.getFile(URL);
+        }
+        file.delete();
+    }
+
+    @Test
+    public void getFileMiss()
+    {
+        final DownloadDirectory directory = DownloadDirectory.from(BenchmarkConfig.getDirectory());
+
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            directory.getFile(URL + "?miss");
+        }
+    }
+}
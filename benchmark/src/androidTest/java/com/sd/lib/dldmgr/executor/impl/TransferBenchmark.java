@@ -0,0 +1,232 @@
+package com.sd.lib.dldmgr.executor.impl;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.sd.lib.dldmgr.BandwidthLimiter;
+import com.sd.lib.dldmgr.BenchmarkConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/**
+ * 测量下载过程中读取写入循环的耗时
+ */
+@RunWith(AndroidJUnit4.class)
+public class TransferBenchmark
+{
+    private static final int PAYLOAD_SIZE = 4 * 1024 * 1024;
+    /** 小文件的大小，测量每次下载的固定开销和内存分配 */
+    private static final int SMALL_PAYLOAD_SIZE = 16 * 1024;
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private final BandwidthLimiter[] mLimiters = new BandwidthLimiter[]{new BandwidthLimiter()};
+    private final HttpDownloader.TransferCallback mCallback = new HttpDownloader.TransferCallback()
+    {
+        @Override
+        public void count(long count)
+        {
+        }
+    };
+
+    private byte[] mPayload;
+    private File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private LoopbackServer mServer;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mPayload = new byte[PAYLOAD_SIZE];
+        new Random(0).nextBytes(mPayload);
+
+        final File dir = BenchmarkConfig.getDirectory();
+        dir.mkdirs();
+        mFile = new File(dir, "transfer.temp");
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        if (mServer != null)
+        {
+            mServer.close();
+            mServer = null;
+        }
+        mRandomAccessFile.close();
+        mFile.delete();
+    }
+
+    /**
+     * 从内存读取，只测量缓冲区拷贝和文件写入
+     */
+    @Test
+    public void transferMemory() throws IOException
+    {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            HttpDownloader.transfer(new ByteArrayInputStream(mPayload), mChannel, 0, -1, mLimiters, mCallback);
+        }
+    }
+
+    /**
+     * 从内存读取小文件，缓冲区从池中获取，每次传输的内存分配应该接近0
+     */
+    @Test
+    public void transferSmallMemory() throws IOException
+    {
+        final ByteArrayInputStream input = new ByteArrayInputStream(mPayload, 0, SMALL_PAYLOAD_SIZE);
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            input.reset();
+            HttpDownloader.transfer(input, mChannel, 0, -1, mLimiters, mCallback);
+        }
+    }
+
+    /**
+     * 从内存读取，同时计算SHA-256校验值
+     */
+    @Test
+    public void transferMemoryWithChecksum() throws IOException, NoSuchAlgorithmException
+    {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            digest.reset();
+            HttpDownloader.transfer(new ByteArrayInputStream(mPayload), mChannel, 0, -1, mLimiters, digest, mCallback);
+            digest.digest();
+        }
+    }
+
+    /**
+     * 从本地回环的http服务器读取，包含建立连接和解析响应头
+     */
+    @Test
+    public void transferLoopback() throws IOException
+    {
+        mServer = new LoopbackServer(mPayload);
+        final String url = mServer.getUrl();
+
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning())
+        {
+            final HttpRequest request = HttpRequest.get(url);
+            final InputStream input = request.stream();
+            try
+            {
+                HttpDownloader.transfer(input, mChannel, 0, -1, mLimiters, mCallback);
+            } finally
+            {
+                input.close();
+                request.disconnect();
+            }
+        }
+    }
+
+    /**
+     * 本地回环的http服务器，每个连接返回同样的数据
+     */
+    private static final class LoopbackServer implements Runnable
+    {
+        private final byte[] mPayload;
+        private final ServerSocket mServerSocket;
+        private final Thread mThread;
+
+        public LoopbackServer(byte[] payload) throws IOException
+        {
+            mPayload = payload;
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            mThread = new Thread(this, "benchmark-loopback-server");
+            mThread.start();
+        }
+
+        public String getUrl()
+        {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/benchmark";
+        }
+
+        public void close() throws IOException
+        {
+            mServerSocket.close();
+            try
+            {
+                mThread.join();
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            while (!mServerSocket.isClosed())
+            {
+                try
+                {
+                    final Socket socket = mServerSocket.accept();
+                    try
+                    {
+                        readRequestHeader(socket.getInputStream());
+                        final OutputStream output = socket.getOutputStream();
+                        output.write(("HTTP/1.1 200 OK\r\n"
+                                + "Content-Length: " + mPayload.length + "\r\n"
+                                + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+                        output.write(mPayload);
+                        output.flush();
+                    } finally
+                    {
+                        socket.close();
+                    }
+                } catch (IOException ignored)
+                {
+                }
+            }
+        }
+
+        /**
+         * 读取请求头，直到空行
+         */
+        private static void readRequestHeader(InputStream input) throws IOException
+        {
+            int matched = 0;
+            while (matched < 4)
+            {
+                final int read = input.read();
+                if (read < 0)
+                    return;
+
+                if (read == (matched % 2 == 0 ? '\r' : '\n'))
+                    matched++;
+                else
+                    matched = read == '\r' ? 1 : 0;
+            }
+        }
+    }
+}
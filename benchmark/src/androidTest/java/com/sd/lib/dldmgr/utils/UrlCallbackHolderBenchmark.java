@@ -0,0 +1,130 @@
+package com.sd.lib.dldmgr.utils;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.sd.lib.dldmgr.BenchmarkConfig;
+import com.sd.lib.dldmgr.DownloadInfo;
+import com.sd.lib.dldmgr.IDownloadManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 多个线程同时添加移除回调的情况下，测量按url分发回调的耗时
+ */
+@RunWith(AndroidJUnit4.class)
+public class UrlCallbackHolderBenchmark
+{
+    private static final int URL_COUNT = 16;
+    private static final int CALLBACK_COUNT_PER_URL = 4;
+    private static final int CONTENTION_THREAD_COUNT = 3;
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private final UrlCallbackHolder mHolder = new UrlCallbackHolder();
+    private final List<Thread> mListThread = new ArrayList<>();
+    private volatile boolean mRunning;
+
+    @Before
+    public void setUp()
+    {
+        BenchmarkConfig.init();
+        for (int i = 0; i < URL_COUNT; i++)
+        {
+            for (int j = 0; j < CALLBACK_COUNT_PER_URL; j++)
+            {
+                mHolder.add(getUrl(i), new EmptyCallback());
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws InterruptedException
+    {
+        mRunning = false;
+        for (Thread thread : mListThread)
+        {
+            thread.join();
+        }
+        mListThread.clear();
+    }
+
+    @Test
+    public void dispatch()
+    {
+        runDispatch();
+    }
+
+    @Test
+    public void dispatchContended()
+    {
+        mRunning = true;
+        for (int i = 0; i < CONTENTION_THREAD_COUNT; i++)
+        {
+            final Thread thread = new Thread(new ContentionRunnable(i));
+            mListThread.add(thread);
+            thread.start();
+        }
+        runDispatch();
+    }
+
+    private void runDispatch()
+    {
+        final DownloadInfo info = new DownloadInfo(getUrl(0));
+        final BenchmarkState state = mBenchmarkRule.getState();
+        int index = 0;
+        while (state.keepRunning())
+        {
+            final IDownloadManager.Callback[] callbacks = mHolder.getUrl(getUrl(index));
+            if (callbacks != null)
+            {
+                for (IDownloadManager.Callback item : callbacks)
+                {
+                    item.onProgress(info);
+                }
+            }
+            index = (index + 1) % URL_COUNT;
+        }
+    }
+
+    private static String getUrl(int index)
+    {
+        return "http://127.0.0.1/benchmark/" + index;
+    }
+
+    private final class ContentionRunnable implements Runnable
+    {
+        private final int mIndex;
+
+        public ContentionRunnable(int index)
+        {
+            mIndex = index;
+        }
+
+        @Override
+        public void run()
+        {
+            final IDownloadManager.Callback callback = new EmptyCallback();
+            int index = mIndex;
+            while (mRunning)
+            {
+                mHolder.add(getUrl(index), callback);
+                mHolder.remove(callback);
+                index = (index + 1) % URL_COUNT;
+            }
+        }
+    }
+
+    private static final class EmptyCallback extends IDownloadManager.CallbackAdapter
+    {
+    }
+}
@@ -0,0 +1,101 @@
+package com.sd.lib.dldmgr
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * 下载限速器(令牌桶)
+ *
+ * 多个任务共用同一个限速器时，按照申请的先后顺序分配带宽，每个任务每次申请的数据量较小，所以带宽在任务之间平均分配
+ */
+class BandwidthLimiter {
+    /** 令牌桶最多可以积累的时长(秒)，允许短时间的突发流量 */
+    private val _maxBurstSeconds: Double
+
+    /** 每秒允许的字节数，小于等于0表示不限速 */
+    @Volatile
+    private var _bytesPerSecond: Long = 0
+
+    /** 桶中积累的字节数 */
+    private var _storedBytes = 0.0
+
+    /** 下一次可以获得令牌的时间(纳秒) */
+    private var _nextFreeTime = 0L
+
+    @JvmOverloads
+    constructor(bytesPerSecond: Long = 0, maxBurstSeconds: Double = 1.0) {
+        _maxBurstSeconds = maxBurstSeconds.coerceAtLeast(0.0)
+        setBytesPerSecond(bytesPerSecond)
+    }
+
+    /**
+     * 每秒允许的字节数，小于等于0表示不限速
+     */
+    val bytesPerSecond: Long
+        get() = _bytesPerSecond
+
+    /**
+     * 设置每秒允许的字节数，小于等于0表示不限速，可以在下载过程中修改
+     */
+    @Synchronized
+    fun setBytesPerSecond(bytesPerSecond: Long) {
+        resync(System.nanoTime())
+        _bytesPerSecond = bytesPerSecond
+        _storedBytes = _storedBytes.coerceAtMost(maxStoredBytes())
+    }
+
+    /**
+     * 申请传输[bytes]个字节，如果超过了限速则阻塞等待
+     */
+    @Throws(InterruptedException::class)
+    fun acquire(bytes: Long) {
+        if (_bytesPerSecond <= 0 || bytes <= 0) return
+        val waitTime = reserve(bytes)
+        if (waitTime > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitTime)
+        }
+    }
+
+    /**
+     * 预留[bytes]个字节
+     *
+     * @return 需要等待的时长(纳秒)
+     */
+    @Synchronized
+    private fun reserve(bytes: Long): Long {
+        val rate = _bytesPerSecond
+        if (rate <= 0) return 0
+
+        val now = System.nanoTime()
+        resync(now)
+
+        val waitTime = (_nextFreeTime - now).coerceAtLeast(0)
+        val storedBytes = _storedBytes.coerceAtMost(bytes.toDouble())
+        val freshBytes = bytes - storedBytes
+        _storedBytes -= storedBytes
+        _nextFreeTime += (freshBytes * NANOS_PER_SECOND / rate).toLong()
+        return waitTime
+    }
+
+    /**
+     * 根据当前时间补充令牌
+     */
+    private fun resync(now: Long) {
+        if (now <= _nextFreeTime) return
+
+        val rate = _bytesPerSecond
+        if (rate > 0 && _nextFreeTime > 0) {
+            val newBytes = (now - _nextFreeTime).toDouble() * rate / NANOS_PER_SECOND
+            _storedBytes = (_storedBytes + newBytes).coerceAtMost(maxStoredBytes())
+        }
+        _nextFreeTime = now
+    }
+
+    private fun maxStoredBytes(): Double {
+        val rate = _bytesPerSecond
+        return if (rate > 0) rate * _maxBurstSeconds else 0.0
+    }
+
+    companion object {
+        private const val NANOS_PER_SECOND = 1_000_000_000.0
+    }
+}
@@ -0,0 +1,13 @@
+package com.sd.lib.dldmgr
+
+/**
+ * 下载文件的校验算法
+ */
+enum class ChecksumType(
+    /** [java.security.MessageDigest]的算法名称 */
+    val algorithm: String
+) {
+    MD5("MD5"),
+    SHA1("SHA-1"),
+    SHA256("SHA-256")
+}
@@ -0,0 +1,144 @@
+package com.sd.lib.dldmgr
+
+import com.sd.lib.dldmgr.directory.IndexEntry
+
+/**
+ * 下载目录清理策略，文件满足所有条件才会被删除，下载中的任务对应的文件不会被删除
+ */
+class CleanupPolicy {
+    /** 是否删除下载文件 */
+    val includeDownloadFile: Boolean
+
+    /** 是否删除临时文件(包括断点信息文件) */
+    val includeTempFile: Boolean
+
+    /** 文件扩展名(例如mp3)，null-不限制；空字符串-扩展名为空的文件 */
+    val ext: String?
+
+    /** 文件最后修改时间距离现在的最小时长(毫秒)，0-不限制 */
+    val minAge: Long
+
+    /** 文件的最小大小(字节)，0-不限制 */
+    val minSize: Long
+
+    /** 每一批删除的文件数量，每一批结束之后通知一次进度 */
+    val batchSize: Int
+
+    private constructor(builder: Builder) {
+        includeDownloadFile = builder.includeDownloadFile
+        includeTempFile = builder.includeTempFile
+        ext = builder.ext
+        minAge = builder.minAge
+        minSize = builder.minSize
+        batchSize = builder.batchSize
+    }
+
+    /**
+     * 文件是否满足清理条件
+     */
+    internal fun accept(entry: IndexEntry, now: Long): Boolean {
+        if (entry.isTemp) {
+            if (!includeTempFile) return false
+        } else {
+            if (!includeDownloadFile) return false
+        }
+
+        if (minAge > 0 && now - entry.lastModified < minAge) return false
+        if (minSize > 0 && entry.size < minSize) return false
+
+        val ext = ext
+        if (ext != null && ext != Utils.getExt(entry.file.absolutePath)) return false
+        return true
+    }
+
+    class Builder {
+        var includeDownloadFile = true
+            private set
+
+        var includeTempFile = false
+            private set
+
+        var ext: String? = null
+            private set
+
+        var minAge: Long = 0
+            private set
+
+        var minSize: Long = 0
+            private set
+
+        var batchSize: Int = 100
+            private set
+
+        /**
+         * 设置是否删除下载文件，默认true
+         */
+        fun setIncludeDownloadFile(include: Boolean): Builder {
+            includeDownloadFile = include
+            return this
+        }
+
+        /**
+         * 设置是否删除临时文件(包括断点信息文件)，默认false
+         */
+        fun setIncludeTempFile(include: Boolean): Builder {
+            includeTempFile = include
+            return this
+        }
+
+        /**
+         * 设置文件扩展名，扩展名不能包含点符号，默认null不限制
+         *
+         * 合法：mp3  不合法：.mp3
+         */
+        fun setExt(ext: String?): Builder {
+            if (ext != null && ext.startsWith(".")) {
+                throw IllegalArgumentException("ext should not start with dot ${ext}")
+            }
+            this.ext = ext
+            return this
+        }
+
+        /**
+         * 设置文件最后修改时间距离现在的最小时长(毫秒)，默认0不限制
+         */
+        fun setMinAge(age: Long): Builder {
+            minAge = age.coerceAtLeast(0)
+            return this
+        }
+
+        /**
+         * 设置文件的最小大小(字节)，默认0不限制
+         */
+        fun setMinSize(size: Long): Builder {
+            minSize = size.coerceAtLeast(0)
+            return this
+        }
+
+        /**
+         * 设置每一批删除的文件数量，默认100
+         */
+        fun setBatchSize(size: Int): Builder {
+            batchSize = size.coerceAtLeast(1)
+            return this
+        }
+
+        fun build(): CleanupPolicy {
+            return CleanupPolicy(this)
+        }
+    }
+
+    companion object {
+        /**
+         * 删除最后修改时间超过[age]毫秒的临时文件，例如上次进程被杀死之后遗留的临时文件
+         */
+        @JvmStatic
+        fun tempFileOlderThan(age: Long): CleanupPolicy {
+            return Builder()
+                .setIncludeDownloadFile(false)
+                .setIncludeTempFile(true)
+                .setMinAge(age)
+                .build()
+        }
+    }
+}
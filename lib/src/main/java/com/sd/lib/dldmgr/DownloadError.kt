@@ -16,6 +16,15 @@ enum class DownloadError {
     /** 临时文件重命名为下载文件失败 */
     RenameFile,
 
+    /** 下载文件的大小和期望的大小不一致 */
+    SizeMismatch,
+
+    /** 下载文件的校验值和期望的校验值不一致 */
+    ChecksumMismatch,
+
+    /** 磁盘可用空间不足 */
+    InsufficientSpace,
+
     /** Http请求异常 */
     Http,
 
@@ -0,0 +1,322 @@
+package com.sd.lib.dldmgr
+
+import android.util.Log
+import java.io.*
+import java.net.URLDecoder
+import java.net.URLEncoder
+
+/**
+ * 下载队列日志，保存没有完成和因为网络异常失败的下载任务，进程被杀死之后可以恢复
+ *
+ * 每次修改都在日志文件末尾追加一行，无效的记录太多时重写日志文件。格式：
+ * ```
+ * dldmgr-journal	1
+ * A	key	url	priority	preferBreakpoint	checksumType	checksum	expectedSize   添加任务
+ * P	key	total	current                                                         进度检查点
+ * R	key                                                                         任务结束
+ * ```
+ * 字段之间用制表符分隔，key，url和checksum经过URL编码，空值用"-"表示。
+ * 限速器和重试策略是运行时的对象，不会保存，恢复的任务使用全局配置
+ */
+internal class DownloadJournal(private val file: File) {
+    private val _entries = LinkedHashMap<String, Entry>()
+    private var _writer: Writer? = null
+    private var _loaded = false
+
+    /** 日志文件中已经无效的记录数量 */
+    private var _redundantCount = 0
+
+    /**
+     * 记录添加任务
+     */
+    @Synchronized
+    fun add(key: String, request: DownloadRequest) {
+        val url = request.url ?: return
+        ensureLoaded()
+
+        replaceEntry(Entry(key, request))
+        append(formatAdd(key, url, request))
+        checkCompact()
+    }
+
+    /**
+     * 记录任务的进度检查点
+     */
+    @Synchronized
+    fun checkpoint(key: String, total: Long, current: Long) {
+        ensureLoaded()
+        val entry = _entries[key] ?: return
+
+        if (entry.hasCheckpoint) _redundantCount++
+        entry.total = total
+        entry.current = current
+        entry.hasCheckpoint = true
+        append(join(OP_PROGRESS, encode(key), total.toString(), current.toString()))
+        checkCompact()
+    }
+
+    /**
+     * 记录任务结束
+     */
+    @Synchronized
+    fun remove(key: String) {
+        ensureLoaded()
+        val entry = _entries.remove(key) ?: return
+
+        _redundantCount += entry.lineCount + 1
+        append(join(OP_REMOVE, encode(key)))
+        checkCompact()
+    }
+
+    /**
+     * 返回没有完成的任务，按照添加的顺序
+     */
+    @Synchronized
+    fun entries(): List<Entry> {
+        ensureLoaded()
+        return ArrayList(_entries.values)
+    }
+
+    private fun ensureLoaded() {
+        if (_loaded) return
+        _loaded = true
+
+        if (!file.exists()) {
+            rewrite()
+        } else if (read()) {
+            checkCompact()
+        } else {
+            // 进程被杀死时最后一行可能只写了一半，重写之后再追加
+            rewrite()
+        }
+    }
+
+    /**
+     * 读取日志文件
+     *
+     * @return false-日志文件有无法解析的内容
+     */
+    private fun read(): Boolean {
+        var complete = true
+        try {
+            BufferedReader(InputStreamReader(FileInputStream(file), CHARSET)).use { reader ->
+                if (reader.readLine() != HEADER) return false
+                while (true) {
+                    val line = reader.readLine() ?: break
+                    if (!readLine(line)) complete = false
+                }
+            }
+        } catch (e: IOException) {
+            Log.e(IDownloadManager.TAG, "read journal error:${e}")
+            return false
+        }
+        return complete
+    }
+
+    private fun readLine(line: String): Boolean {
+        val fields = line.split('\t')
+        try {
+            when (fields[0]) {
+                OP_ADD -> {
+                    if (fields.size != 8) return false
+                    val key = decode(fields[1])
+                    val request = DownloadRequest.Builder()
+                        .setPriority(fields[3].toInt())
+                        .setPreferBreakpoint(
+                            when (fields[4]) {
+                                "1" -> true
+                                "0" -> false
+                                else -> null
+                            }
+                        )
+                        .setChecksum(
+                            if (fields[5] == NULL) null else ChecksumType.valueOf(fields[5]),
+                            if (fields[6] == NULL) null else decode(fields[6])
+                        )
+                        .setExpectedSize(fields[7].toLong())
+                        .build(decode(fields[2]))
+
+                    replaceEntry(Entry(key, request))
+                }
+                OP_PROGRESS -> {
+                    if (fields.size != 4) return false
+                    val entry = _entries[decode(fields[1])] ?: return true
+                    if (entry.hasCheckpoint) _redundantCount++
+                    entry.total = fields[2].toLong()
+                    entry.current = fields[3].toLong()
+                    entry.hasCheckpoint = true
+                }
+                OP_REMOVE -> {
+                    if (fields.size != 2) return false
+                    _redundantCount++
+                    _entries.remove(decode(fields[1]))?.let { _redundantCount += it.lineCount }
+                }
+                else -> return false
+            }
+        } catch (e: IllegalArgumentException) {
+            // 数字格式错误和不认识的校验算法
+            return false
+        }
+        return true
+    }
+
+    /**
+     * 保存[entry]，恢复的任务重新添加时保留之前的进度检查点，之前的检查点记录仍然有效
+     */
+    private fun replaceEntry(entry: Entry) {
+        _entries.remove(entry.key)?.let { old ->
+            _redundantCount++
+            if (old.hasCheckpoint) {
+                entry.total = old.total
+                entry.current = old.current
+                entry.hasCheckpoint = true
+            }
+        }
+        _entries[entry.key] = entry
+    }
+
+    /**
+     * 无效的记录太多时重写日志文件
+     *
+     * @return true-已经重写
+     */
+    private fun checkCompact(): Boolean {
+        if (_redundantCount < COMPACT_THRESHOLD || _redundantCount < _entries.size) return false
+        rewrite()
+        return true
+    }
+
+    /**
+     * 只保留没有完成的任务，先写入临时文件再重命名
+     */
+    private fun rewrite() {
+        closeWriter()
+
+        val dir = file.parentFile
+        if (dir != null && !Utils.checkDir(dir)) return
+
+        val tempFile = File(file.path + ".tmp")
+        try {
+            BufferedWriter(OutputStreamWriter(FileOutputStream(tempFile), CHARSET)).use { writer ->
+                writer.write(HEADER)
+                writer.write("\n")
+                for (entry in _entries.values) {
+                    val url = entry.request.url ?: continue
+                    writer.write(formatAdd(entry.key, url, entry.request))
+                    writer.write("\n")
+                    if (entry.hasCheckpoint) {
+                        writer.write(join(OP_PROGRESS, encode(entry.key), entry.total.toString(), entry.current.toString()))
+                        writer.write("\n")
+                    }
+                }
+            }
+            if (!tempFile.renameTo(file)) {
+                file.delete()
+                tempFile.renameTo(file)
+            }
+            _redundantCount = 0
+        } catch (e: IOException) {
+            Log.e(IDownloadManager.TAG, "rewrite journal error:${e}")
+            tempFile.delete()
+        }
+    }
+
+    private fun append(line: String) {
+        val writer = _writer ?: openWriter() ?: return
+        try {
+            // 只需要在进程被杀死之后保留，写入系统缓存即可，不需要同步到磁盘
+            writer.write(line)
+            writer.write("\n")
+            writer.flush()
+        } catch (e: IOException) {
+            Log.e(IDownloadManager.TAG, "append journal error:${e}")
+            closeWriter()
+        }
+    }
+
+    private fun openWriter(): Writer? {
+        // 日志文件被删除之后重新创建，包含当前所有的任务
+        if (!file.exists()) rewrite()
+        return try {
+            BufferedWriter(OutputStreamWriter(FileOutputStream(file, true), CHARSET)).also {
+                _writer = it
+            }
+        } catch (e: IOException) {
+            Log.e(IDownloadManager.TAG, "open journal error:${e}")
+            null
+        }
+    }
+
+    private fun closeWriter() {
+        try {
+            _writer?.close()
+        } catch (e: IOException) {
+        }
+        _writer = null
+    }
+
+    class Entry(
+        val key: String,
+        val request: DownloadRequest
+    ) {
+        /** 文件总大小，小于等于0表示未知 */
+        var total: Long = -1
+
+        /** 最后一次记录的下载量 */
+        var current: Long = 0
+
+        var hasCheckpoint = false
+
+        /** 在日志文件中的记录数量 */
+        val lineCount: Int
+            get() = if (hasCheckpoint) 2 else 1
+    }
+
+    companion object {
+        /** 日志文件在下载目录中的相对路径，不是分片目录，不会被下载目录的索引扫描 */
+        const val FILE_PATH = "journal/queue.journal"
+
+        private const val HEADER = "dldmgr-journal\t1"
+        private const val CHARSET = "UTF-8"
+        private const val NULL = "-"
+
+        private const val OP_ADD = "A"
+        private const val OP_PROGRESS = "P"
+        private const val OP_REMOVE = "R"
+
+        /** 无效的记录超过这个数量，并且多于有效的任务数量时重写日志文件 */
+        private const val COMPACT_THRESHOLD = 500
+
+        private fun formatAdd(key: String, url: String, request: DownloadRequest): String {
+            val preferBreakpoint = when (request.preferBreakpoint) {
+                true -> "1"
+                false -> "0"
+                null -> NULL
+            }
+            val checksumType = request.checksumType
+            val checksum = request.checksum
+            return join(
+                OP_ADD,
+                encode(key),
+                encode(url),
+                request.priority.toString(),
+                preferBreakpoint,
+                checksumType?.name ?: NULL,
+                if (checksumType == null || checksum == null) NULL else encode(checksum),
+                request.expectedSize.toString()
+            )
+        }
+
+        private fun join(vararg fields: String): String {
+            return fields.joinToString("\t")
+        }
+
+        private fun encode(value: String): String {
+            return URLEncoder.encode(value, CHARSET)
+        }
+
+        private fun decode(value: String): String {
+            return URLDecoder.decode(value, CHARSET)
+        }
+    }
+}
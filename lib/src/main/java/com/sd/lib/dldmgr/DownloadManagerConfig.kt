@@ -1,8 +1,14 @@
 package com.sd.lib.dldmgr
 
 import android.content.Context
+import com.sd.lib.dldmgr.cachekey.ICacheKeyStrategy
+import com.sd.lib.dldmgr.cachekey.UrlCacheKeyStrategy
+import com.sd.lib.dldmgr.dispatcher.ICallbackDispatcher
+import com.sd.lib.dldmgr.dispatcher.MainCallbackDispatcher
 import com.sd.lib.dldmgr.executor.IDownloadExecutor
 import com.sd.lib.dldmgr.executor.impl.DefaultDownloadExecutor
+import com.sd.lib.dldmgr.metrics.DownloadMetrics
+import com.sd.lib.dldmgr.metrics.IMetricsReporter
 
 /**
  * 下载器配置
@@ -11,7 +17,44 @@ class DownloadManagerConfig {
     val isDebug: Boolean
     val context: Context
     val downloadDirectory: String
+
+    /** 下载目录是否使用分片布局 */
+    val isShardedDirectory: Boolean
+
+    /** 下载目录中下载文件的最大总大小(字节)，小于等于0表示不限制 */
+    val maxDirectorySize: Long
+
+    /** 下载目录中下载文件的最大数量，小于等于0表示不限制 */
+    val maxDirectoryFileCount: Int
+
+    /** 临时文件过期时长(毫秒)，启动的时候删除过期的临时文件，小于等于0表示不删除 */
+    val tempFileExpiry: Long
+
+    /** 是否在下载目录中保存下载队列日志，进程被杀死之后可以恢复没有完成的任务 */
+    val isQueueJournal: Boolean
+
+    /** 缓存key策略，用于任务去重，临时文件和下载文件的命名以及所有按url的查询 */
+    val cacheKeyStrategy: ICacheKeyStrategy
     val downloadExecutor: IDownloadExecutor
+    val progressNotifyPolicy: ProgressNotifyPolicy
+
+    /** 下载失败重试策略，可以被[DownloadRequest.retryPolicy]覆盖 */
+    val retryPolicy: RetryPolicy
+
+    /** 回调分发器 */
+    val callbackDispatcher: ICallbackDispatcher
+
+    /** 全局限速器，所有下载任务共用，可以通过[BandwidthLimiter.setBytesPerSecond]动态修改 */
+    val bandwidthLimiter: BandwidthLimiter
+
+    /** 下载统计 */
+    val metrics: DownloadMetrics = DownloadMetrics()
+
+    /** 下载统计上报，null表示不上报 */
+    val metricsReporter: IMetricsReporter?
+
+    /** 下载统计上报间隔(毫秒) */
+    val metricsReportInterval: Long
 
     private constructor(builder: Builder) {
         isDebug = builder.isDebug
@@ -23,7 +66,19 @@ class DownloadManagerConfig {
             dir = dirFile.absolutePath
         }
         downloadDirectory = dir!!
+        isShardedDirectory = builder.isShardedDirectory
+        maxDirectorySize = builder.maxDirectorySize
+        maxDirectoryFileCount = builder.maxDirectoryFileCount
+        tempFileExpiry = builder.tempFileExpiry
+        isQueueJournal = builder.isQueueJournal
+        cacheKeyStrategy = builder.cacheKeyStrategy ?: UrlCacheKeyStrategy()
         downloadExecutor = builder.downloadExecutor ?: DefaultDownloadExecutor()
+        progressNotifyPolicy = builder.progressNotifyPolicy ?: ProgressNotifyPolicy.DEFAULT
+        retryPolicy = builder.retryPolicy ?: RetryPolicy.NONE
+        callbackDispatcher = builder.callbackDispatcher ?: MainCallbackDispatcher()
+        bandwidthLimiter = builder.bandwidthLimiter ?: BandwidthLimiter()
+        metricsReporter = builder.metricsReporter
+        metricsReportInterval = builder.metricsReportInterval
     }
 
     class Builder {
@@ -36,9 +91,45 @@ class DownloadManagerConfig {
         var downloadDirectory: String? = null
             private set
 
+        var isShardedDirectory = false
+            private set
+
+        var maxDirectorySize: Long = 0
+            private set
+
+        var maxDirectoryFileCount: Int = 0
+            private set
+
+        var tempFileExpiry: Long = 0
+            private set
+
+        var isQueueJournal = false
+            private set
+
+        var cacheKeyStrategy: ICacheKeyStrategy? = null
+            private set
+
         var downloadExecutor: IDownloadExecutor? = null
             private set
 
+        var progressNotifyPolicy: ProgressNotifyPolicy? = null
+            private set
+
+        var retryPolicy: RetryPolicy? = null
+            private set
+
+        var callbackDispatcher: ICallbackDispatcher? = null
+            private set
+
+        var bandwidthLimiter: BandwidthLimiter? = null
+            private set
+
+        var metricsReporter: IMetricsReporter? = null
+            private set
+
+        var metricsReportInterval: Long = 60 * 1000
+            private set
+
         /**
          * 设置调试模式
          */
@@ -55,6 +146,56 @@ class DownloadManagerConfig {
             return this
         }
 
+        /**
+         * 设置下载目录是否使用分片布局，默认false。
+         * 开启之后文件保存在两级子目录中，文件数量很多时目录操作更快，已有的文件会自动迁移
+         */
+        fun setShardedDirectory(sharded: Boolean): Builder {
+            isShardedDirectory = sharded
+            return this
+        }
+
+        /**
+         * 设置下载目录的容量限制，超过限制之后按照最近最少使用的顺序删除下载文件，默认不限制。
+         * 临时文件不计算在内，下载中的任务对应的文件不会被删除
+         *
+         * @param maxSize  下载文件的最大总大小(字节)，小于等于0表示不限制
+         * @param maxCount 下载文件的最大数量，小于等于0表示不限制
+         */
+        @JvmOverloads
+        fun setDirectoryLimit(maxSize: Long, maxCount: Int = 0): Builder {
+            maxDirectorySize = maxSize
+            maxDirectoryFileCount = maxCount
+            return this
+        }
+
+        /**
+         * 设置临时文件过期时长(毫秒)，启动的时候在后台线程删除过期的临时文件，默认不删除。
+         * 下载中的任务对应的临时文件不会被删除
+         */
+        fun setTempFileExpiry(expiry: Long): Builder {
+            tempFileExpiry = expiry
+            return this
+        }
+
+        /**
+         * 设置是否保存下载队列日志，默认false。
+         * 开启之后添加的任务和下载进度记录在下载目录的日志文件中，进程被杀死之后通过[IDownloadManager.restoreQueue]恢复没有完成和因为网络异常失败的任务
+         */
+        fun setQueueJournal(enable: Boolean): Builder {
+            isQueueJournal = enable
+            return this
+        }
+
+        /**
+         * 设置缓存key策略，默认直接使用url。
+         * key相同的url对应同一个任务和同一个文件，例如[com.sd.lib.dldmgr.cachekey.QueryCacheKeyStrategy]忽略签名参数
+         */
+        fun setCacheKeyStrategy(strategy: ICacheKeyStrategy?): Builder {
+            cacheKeyStrategy = strategy
+            return this
+        }
+
         /**
          * 设置下载执行器
          */
@@ -63,6 +204,50 @@ class DownloadManagerConfig {
             return this
         }
 
+        /**
+         * 设置下载进度通知策略
+         */
+        fun setProgressNotifyPolicy(policy: ProgressNotifyPolicy?): Builder {
+            progressNotifyPolicy = policy
+            return this
+        }
+
+        /**
+         * 设置下载失败重试策略，默认不重试
+         */
+        fun setRetryPolicy(policy: RetryPolicy?): Builder {
+            retryPolicy = policy
+            return this
+        }
+
+        /**
+         * 设置回调分发器，默认在主线程执行回调
+         */
+        fun setCallbackDispatcher(dispatcher: ICallbackDispatcher?): Builder {
+            callbackDispatcher = dispatcher
+            return this
+        }
+
+        /**
+         * 设置全局限速器，默认不限速
+         */
+        fun setBandwidthLimiter(limiter: BandwidthLimiter?): Builder {
+            bandwidthLimiter = limiter
+            return this
+        }
+
+        /**
+         * 设置下载统计上报
+         *
+         * @param interval 上报间隔(毫秒)，默认60秒
+         */
+        @JvmOverloads
+        fun setMetricsReporter(reporter: IMetricsReporter?, interval: Long = 60 * 1000): Builder {
+            metricsReporter = reporter
+            metricsReportInterval = interval.coerceAtLeast(1000)
+            return this
+        }
+
         fun build(context: Context): DownloadManagerConfig {
             this.context = context.applicationContext
             return DownloadManagerConfig(this)
@@ -7,9 +7,33 @@ class DownloadRequest {
     /** 是否需要断点下载 */
     val preferBreakpoint: Boolean?
 
+    /** 优先级，越大越先下载 */
+    val priority: Int
+
+    /** 任务限速器 */
+    val bandwidthLimiter: BandwidthLimiter?
+
+    /** 校验算法，null表示不校验 */
+    val checksumType: ChecksumType?
+
+    /** 期望的校验值，16进制字符串 */
+    val checksum: String?
+
+    /** 期望的文件大小，小于0表示不校验 */
+    val expectedSize: Long
+
+    /** 重试策略，null表示使用全局配置 */
+    val retryPolicy: RetryPolicy?
+
     private constructor(builder: Builder) {
         url = builder.url
         preferBreakpoint = builder.preferBreakpoint
+        priority = builder.priority
+        bandwidthLimiter = builder.bandwidthLimiter
+        checksumType = builder.checksumType
+        checksum = builder.checksum
+        expectedSize = builder.expectedSize
+        retryPolicy = builder.retryPolicy
     }
 
     class Builder {
@@ -19,6 +43,24 @@ class DownloadRequest {
         var preferBreakpoint: Boolean? = null
             private set
 
+        var priority: Int = 0
+            private set
+
+        var bandwidthLimiter: BandwidthLimiter? = null
+            private set
+
+        var checksumType: ChecksumType? = null
+            private set
+
+        var checksum: String? = null
+            private set
+
+        var expectedSize: Long = -1
+            private set
+
+        var retryPolicy: RetryPolicy? = null
+            private set
+
         /**
          * 设置是否需要断点下载
          *
@@ -29,6 +71,53 @@ class DownloadRequest {
             return this
         }
 
+        /**
+         * 设置优先级，越大越先下载，默认0
+         */
+        fun setPriority(priority: Int): Builder {
+            this.priority = priority
+            return this
+        }
+
+        /**
+         * 设置任务限速器，同时受全局限速器的限制。多个任务可以共用同一个限速器，共享限速额度
+         */
+        fun setBandwidthLimiter(limiter: BandwidthLimiter?): Builder {
+            this.bandwidthLimiter = limiter
+            return this
+        }
+
+        /**
+         * 设置期望的校验值，下载过程中边写入边计算，下载完成之后不一致则下载失败，错误为[DownloadError.ChecksumMismatch]
+         *
+         * @param type     校验算法，null表示不校验
+         * @param checksum 期望的校验值，16进制字符串，不区分大小写
+         */
+        fun setChecksum(type: ChecksumType?, checksum: String?): Builder {
+            if (type != null && (checksum == null || checksum.isEmpty())) {
+                throw IllegalArgumentException("checksum is empty")
+            }
+            this.checksumType = type
+            this.checksum = checksum
+            return this
+        }
+
+        /**
+         * 设置期望的文件大小，下载完成之后不一致则下载失败，错误为[DownloadError.SizeMismatch]，小于0表示不校验
+         */
+        fun setExpectedSize(size: Long): Builder {
+            this.expectedSize = size
+            return this
+        }
+
+        /**
+         * 设置重试策略，null表示使用全局配置[DownloadManagerConfig.retryPolicy]
+         */
+        fun setRetryPolicy(policy: RetryPolicy?): Builder {
+            this.retryPolicy = policy
+            return this
+        }
+
         fun build(url: String?): DownloadRequest {
             this.url = url
             return DownloadRequest(this)
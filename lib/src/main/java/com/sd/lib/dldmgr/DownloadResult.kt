@@ -0,0 +1,23 @@
+package com.sd.lib.dldmgr
+
+import java.io.File
+
+/**
+ * 下载结果
+ */
+class DownloadResult {
+    /** 下载信息，状态为[DownloadState.Success]或者[DownloadState.Error] */
+    val info: DownloadInfo
+
+    /** 下载文件，下载失败为null */
+    val file: File?
+
+    internal constructor(info: DownloadInfo, file: File?) {
+        this.info = info
+        this.file = file
+    }
+
+    override fun toString(): String {
+        return "${info.url} ${info.state} ${info.error ?: ""} ${file ?: ""}"
+    }
+}
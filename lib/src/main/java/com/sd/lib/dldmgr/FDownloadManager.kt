@@ -2,31 +2,245 @@ package com.sd.lib.dldmgr
 
 import android.util.Log
 import com.sd.lib.dldmgr.directory.DownloadDirectory
+import com.sd.lib.dldmgr.directory.IDownloadDirectory
 import com.sd.lib.dldmgr.directory.IDownloadDirectory.FileInterceptor
 import com.sd.lib.dldmgr.exception.DownloadException
 import com.sd.lib.dldmgr.exception.DownloadHttpException
+import com.sd.lib.dldmgr.exception.DownloadSpaceException
+import com.sd.lib.dldmgr.exception.DownloadVerifyException
+import com.sd.lib.dldmgr.metrics.DownloadMetrics
+import com.sd.lib.dldmgr.metrics.DownloadMetricsSnapshot
 import com.sd.lib.dldmgr.utils.UrlCallbackHolder
 import java.io.File
+import java.io.IOException
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.flow.*
+import kotlinx.coroutines.suspendCancellableCoroutine
 import kotlin.coroutines.resume
-import kotlin.coroutines.suspendCoroutine
 
 class FDownloadManager : IDownloadManager {
     private val _downloadDirectory: DownloadDirectory
 
-    private val _mapDownloadInfo: MutableMap<String, DownloadInfoWrapper> = ConcurrentHashMap()
-    private val _mapTempFile: MutableMap<File, String> = ConcurrentHashMap()
+    /** 以url的缓存key保存下载中的任务，key相同的url同时只能有一个任务 */
+    private val _mapDownloadInfo = ConcurrentHashMap<String, DownloadInfoWrapper>()
+    private val _mapTempFile = ConcurrentHashMap<File, DownloadInfoWrapper>()
+
+    /** 按照缓存key分段的锁，保证任务结束和添加url回调的顺序，不同url之间基本不会互相等待 */
+    private val _urlLocks = Array(32) { Any() }
 
     private val _callbackHolder: MutableMap<IDownloadManager.Callback, String> = ConcurrentHashMap()
     private val _urlCallbackHolder = UrlCallbackHolder()
 
+    /** 下载队列日志，null-没有开启 */
+    private val _journal: DownloadJournal?
+
+    private val _mapStateFlow = ConcurrentHashMap<String, MutableStateFlow<DownloadInfo>>()
+    private val _resultFlow = MutableSharedFlow<DownloadResult>(
+        extraBufferCapacity = 64,
+        onBufferOverflow = BufferOverflow.DROP_OLDEST
+    )
+
     protected constructor(directory: String) {
         if (directory.isEmpty()) throw IllegalArgumentException("directory is empty")
-        _downloadDirectory = DownloadDirectory.from(File(directory))
+        _downloadDirectory = DownloadDirectory.from(File(directory), config.isShardedDirectory, config.cacheKeyStrategy)
+        _journal = if (config.isQueueJournal) DownloadJournal(File(directory, DownloadJournal.FILE_PATH)) else null
+        // 在后台线程扫描下载目录，切换布局时移动已有的文件，主线程查询时只需要等待扫描完成
+        _backgroundExecutor.execute {
+            try {
+                _downloadDirectory.migrate()
+            } catch (e: Exception) {
+                Log.e(IDownloadManager.TAG, "migrate directory error:${e}")
+            }
+        }
+        startMetricsReport()
+        // 容量限制可能被修改过，启动的时候检查一次
+        scheduleTrimDirectory()
+
+        // 删除上次进程被杀死之后遗留的临时文件
+        val tempFileExpiry = config.tempFileExpiry
+        if (tempFileExpiry > 0) {
+            cleanup(CleanupPolicy.tempFileOlderThan(tempFileExpiry), null)
+        }
+    }
+
+    /** 后台线程，执行统计上报和目录维护等任务 */
+    private val _backgroundExecutor: ScheduledExecutorService by lazy {
+        Executors.newSingleThreadScheduledExecutor { runnable ->
+            Thread(runnable, "FDownloadManager-background").apply { isDaemon = true }
+        }
+    }
+
+    /** 是否已经有等待执行的目录容量检查 */
+    private val _trimPending = AtomicBoolean()
+
+    /** 拦截下载中的任务对应的文件：临时文件，断点信息文件和下载文件 */
+    private val _inFlightFileInterceptor = object : FileInterceptor {
+        override fun intercept(file: File): Boolean {
+            // 同一个url的文件名前缀都是md5(key)
+            val tempName = file.name.substringBefore('.') + IDownloadDirectory.EXT_TEMP
+            return _mapTempFile.containsKey(File(file.parentFile, tempName))
+        }
+    }
+
+    /**
+     * 定时上报下载统计
+     */
+    private fun startMetricsReport() {
+        val reporter = config.metricsReporter ?: return
+        val interval = config.metricsReportInterval
+        _backgroundExecutor.scheduleWithFixedDelay({
+            try {
+                reporter.report(config.metrics.snapshot())
+            } catch (e: Exception) {
+                Log.e(IDownloadManager.TAG, "report metrics error:${e}")
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * 在后台线程检查下载目录的容量，超过限制则删除最近最少使用的下载文件
+     */
+    private fun scheduleTrimDirectory() {
+        val maxSize = config.maxDirectorySize
+        val maxCount = config.maxDirectoryFileCount
+        if (maxSize <= 0 && maxCount <= 0) return
+
+        // 连续下载成功时只需要检查一次
+        if (!_trimPending.compareAndSet(false, true)) return
+        _backgroundExecutor.execute {
+            _trimPending.set(false)
+            try {
+                val count = _downloadDirectory.trimToSize(maxSize, maxCount, _inFlightFileInterceptor)
+                if (config.isDebug && count > 0) {
+                    Log.i(IDownloadManager.TAG, "trimDirectory count:${count}")
+                }
+            } catch (e: Exception) {
+                Log.e(IDownloadManager.TAG, "trimDirectory error:${e}")
+            }
+        }
+    }
+
+    override fun cleanup(policy: CleanupPolicy, callback: IDownloadManager.CleanupCallback?) {
+        _backgroundExecutor.execute {
+            val files = _downloadDirectory.findFiles(policy)
+            cleanupBatch(files, 0, 0, policy, callback)
+        }
+    }
+
+    override suspend fun awaitCleanup(policy: CleanupPolicy): Int {
+        return suspendCancellableCoroutine { continuation ->
+            cleanup(policy, object : IDownloadManager.CleanupCallback {
+                override fun onProgress(deleted: Int, processed: Int, total: Int) {
+                }
+
+                override fun onComplete(deleted: Int) {
+                    if (continuation.isActive) continuation.resume(deleted)
+                }
+            })
+        }
+    }
+
+    /**
+     * 删除[files]中从[start]开始的一批文件，每一批在后台线程单独执行，批次之间其他后台任务可以先执行
+     */
+    private fun cleanupBatch(
+        files: List<File>,
+        start: Int,
+        deleted: Int,
+        policy: CleanupPolicy,
+        callback: IDownloadManager.CleanupCallback?
+    ) {
+        var count = deleted
+        val end = minOf(start + policy.batchSize, files.size)
+        for (i in start until end) {
+            val file = files[i]
+            // 查找文件之后可能有新的任务开始
+            if (_inFlightFileInterceptor.intercept(file)) continue
+            if (_downloadDirectory.delete(file)) count++
+        }
+
+        val deletedCount = count
+        if (end < files.size) {
+            if (callback != null) {
+                config.callbackDispatcher.dispatch { callback.onProgress(deletedCount, end, files.size) }
+            }
+            _backgroundExecutor.execute { cleanupBatch(files, end, deletedCount, policy, callback) }
+        } else {
+            if (config.isDebug) {
+                Log.i(IDownloadManager.TAG, "cleanup count:${deletedCount} total:${files.size}")
+            }
+            if (callback != null) {
+                config.callbackDispatcher.dispatch {
+                    callback.onProgress(deletedCount, files.size, files.size)
+                    callback.onComplete(deletedCount)
+                }
+            }
+        }
+    }
+
+    override fun restoreQueue(callback: IDownloadManager.RestoreCallback?) {
+        val journal = _journal
+        if (journal == null) {
+            if (callback != null) config.callbackDispatcher.dispatch { callback.onComplete(0) }
+            return
+        }
+
+        // 读取日志文件和截断临时文件需要访问磁盘，在后台线程执行
+        _backgroundExecutor.execute {
+            var count = 0
+            try {
+                for (entry in journal.entries()) {
+                    if (_downloadDirectory.getFile(entry.request.url) != null) {
+                        // 下载成功之后进程被杀死，还没有记录任务结束
+                        journal.remove(entry.key)
+                        continue
+                    }
+                    if (addTask(entry.request, entry)) count++
+                }
+            } catch (e: Exception) {
+                Log.e(IDownloadManager.TAG, "restoreQueue error:${e}")
+            }
+
+            if (config.isDebug) {
+                Log.i(IDownloadManager.TAG, "restoreQueue count:${count}")
+            }
+            if (callback != null) {
+                val restoredCount = count
+                config.callbackDispatcher.dispatch { callback.onComplete(restoredCount) }
+            }
+        }
+    }
+
+    override suspend fun awaitRestoreQueue(): Int {
+        return suspendCancellableCoroutine { continuation ->
+            restoreQueue(object : IDownloadManager.RestoreCallback {
+                override fun onComplete(count: Int) {
+                    if (continuation.isActive) continuation.resume(count)
+                }
+            })
+        }
+    }
+
+    /**
+     * 在后台线程按顺序修改下载队列日志，没有开启则忽略
+     */
+    private inline fun journal(key: String, crossinline block: (DownloadJournal) -> Unit) {
+        val journal = _journal ?: return
+        _backgroundExecutor.execute {
+            try {
+                block(journal)
+            } catch (e: Exception) {
+                Log.e(IDownloadManager.TAG, "journal error:${e} key:${key}")
+            }
+        }
     }
 
-    @Synchronized
     override fun addCallback(callback: IDownloadManager.Callback): Boolean {
         val put = _callbackHolder.put(callback, "")
         if (put == null) {
@@ -37,7 +251,6 @@ class FDownloadManager : IDownloadManager {
         return true
     }
 
-    @Synchronized
     override fun removeCallback(callback: IDownloadManager.Callback) {
         if (_callbackHolder.remove(callback) != null) {
             if (config.isDebug) {
@@ -47,21 +260,41 @@ class FDownloadManager : IDownloadManager {
         _urlCallbackHolder.remove(callback)
     }
 
-    @Synchronized
     override fun addUrlCallback(url: String?, callback: IDownloadManager.Callback): Boolean {
         if (url == null || url.isEmpty()) return false
-        val hasTask = _mapDownloadInfo.containsKey(url)
-        if (!hasTask) return false
+        val key = keyOf(url)
+        synchronized(getUrlLock(key)) {
+            val hasTask = _mapDownloadInfo.containsKey(key)
+            if (!hasTask) return false
 
-        _urlCallbackHolder.add(url, callback)
+            _urlCallbackHolder.add(key, callback)
+        }
         return true
     }
 
+    private fun getUrlLock(key: String): Any {
+        return _urlLocks[(key.hashCode() and Int.MAX_VALUE) % _urlLocks.size]
+    }
+
+    /**
+     * 返回[url]的缓存key
+     */
+    private fun keyOf(url: String): String {
+        return config.cacheKeyStrategy.getKey(url)
+    }
+
     override fun getDownloadFile(url: String?): File? {
         return _downloadDirectory.getFile(url)
     }
 
     override fun getTempFile(url: String?): File? {
+        if (url == null || url.isEmpty()) return null
+
+        // 下载中的临时文件由下载线程写入，内存索引中的信息不准确
+        _mapDownloadInfo[keyOf(url)]?.let { wrapper ->
+            val tempFile = wrapper.tempFile
+            return if (tempFile.exists()) tempFile else null
+        }
         return _downloadDirectory.getTempFile(url)
     }
 
@@ -73,18 +306,15 @@ class FDownloadManager : IDownloadManager {
     }
 
     override fun deleteTempFile() {
-        val count = _downloadDirectory.deleteTempFile(object : FileInterceptor {
-            override fun intercept(file: File): Boolean {
-                return _mapTempFile.containsKey(file)
-            }
-        })
+        val count = _downloadDirectory.deleteTempFile(_inFlightFileInterceptor)
         if (config.isDebug) {
             Log.i(IDownloadManager.TAG, "deleteTempFile count:${count}")
         }
     }
 
     override fun getDownloadInfo(url: String?): DownloadInfo? {
-        val wrapper = _mapDownloadInfo[url] ?: return null
+        if (url == null) return null
+        val wrapper = _mapDownloadInfo[keyOf(url)] ?: return null
         return wrapper.downloadInfo
     }
 
@@ -93,47 +323,69 @@ class FDownloadManager : IDownloadManager {
         return addTask(downloadRequest)
     }
 
-    @Synchronized
     override fun addTask(request: DownloadRequest): Boolean {
+        return addTask(request, null)
+    }
+
+    /**
+     * @param journalEntry 从下载队列日志恢复的任务，null-新添加的任务
+     */
+    private fun addTask(request: DownloadRequest, journalEntry: DownloadJournal.Entry?): Boolean {
         val url = request.url
         if (url == null || url.isEmpty()) return false
 
-        val isDownloading = _mapDownloadInfo.containsKey(url)
+        val key = keyOf(url)
+        val isDownloading = _mapDownloadInfo.containsKey(key)
         if (isDownloading) return true
 
+        // 创建临时文件需要访问磁盘，不在任何锁里面执行
         val info = DownloadInfo(url)
         val tempFile = _downloadDirectory.newUrlTempFile(url)
         if (tempFile == null) {
             if (config.isDebug) {
                 Log.e(IDownloadManager.TAG, "addTask error create temp file failed:${url}")
             }
-            notifyError(info, DownloadError.CreateTempFile)
+            notifyError(null, info, DownloadError.CreateTempFile)
             return false
         }
 
-        val downloadUpdater = InternalDownloadUpdater(info, tempFile)
-        val submitted = config.downloadExecutor.submit(request, tempFile, downloadUpdater)
-        if (!submitted) {
-            if (config.isDebug) {
-                Log.e(IDownloadManager.TAG, "addTask error submit request failed:${url}")
-            }
-            notifyError(info, DownloadError.SubmitFailed)
-            return false
-        }
+        // 同一个key同时只能有一个任务添加成功
+        val wrapper = DownloadInfoWrapper(key, info, tempFile)
+        if (_mapDownloadInfo.putIfAbsent(key, wrapper) != null) return true
+        _mapTempFile[tempFile] = wrapper
+
+        config.metrics.recordTaskSubmitted()
+        journal(key) { it.add(key, request) }
 
-        _mapDownloadInfo[url] = DownloadInfoWrapper(info, tempFile)
-        _mapTempFile[tempFile] = url
+        if (journalEntry != null && journalEntry.hasCheckpoint) {
+            // 预先分配空间之后进程被杀死，临时文件的长度可能是完整的长度，按照记录的进度截断
+            val length = minOf(journalEntry.current, tempFile.length())
+            Utils.truncateFile(tempFile, length)
+            // 恢复的任务先显示已经下载的进度，开始下载之后会更新
+            if (length > 0) info.transmitParam.transmit(journalEntry.total, length)
+        }
         if (config.isDebug) {
             Log.i(
                 IDownloadManager.TAG, "addTask url:${url} temp:${tempFile.absolutePath}" +
                         " size:${_mapDownloadInfo.size} tempSize:${_mapTempFile.size}"
             )
         }
-        notifyPrepare(info)
+
+        // 提交之前切换到准备状态，下载线程可能在submit返回之前就开始通知进度
+        notifyPrepare(wrapper)
+
+        val downloadUpdater = InternalDownloadUpdater(wrapper, request.retryPolicy ?: config.retryPolicy)
+        val submitted = config.downloadExecutor.submit(request, tempFile, downloadUpdater)
+        if (!submitted) {
+            if (config.isDebug) {
+                Log.e(IDownloadManager.TAG, "addTask error submit request failed:${url}")
+            }
+            notifyError(wrapper, info, DownloadError.SubmitFailed)
+            return false
+        }
         return true
     }
 
-    @Synchronized
     override fun cancelTask(url: String?): Boolean {
         if (url == null || url.isEmpty()) return false
 
@@ -145,7 +397,8 @@ class FDownloadManager : IDownloadManager {
             }
         }
 
-        val result = config.downloadExecutor.cancel(url)
+        // 下载器按照提交任务时的url保存任务，key相同的url可能不一样
+        val result = config.downloadExecutor.cancel(downloadInfo?.url ?: url)
 
         if (isDownloading) {
             if (config.isDebug) {
@@ -155,9 +408,43 @@ class FDownloadManager : IDownloadManager {
         return result
     }
 
+    override fun setTaskPriority(url: String?, priority: Int): Boolean {
+        if (url == null || url.isEmpty()) return false
+        val wrapper = _mapDownloadInfo[keyOf(url)] ?: return false
+
+        val result = config.downloadExecutor.setPriority(wrapper.downloadInfo.url, priority)
+        if (config.isDebug) {
+            Log.i(IDownloadManager.TAG, "setTaskPriority result:${result} priority:${priority} url:${url}")
+        }
+        return result
+    }
+
+    override fun getMetrics(): DownloadMetricsSnapshot {
+        return config.metrics.snapshot()
+    }
+
+    override fun observe(url: String): StateFlow<DownloadInfo> {
+        val key = keyOf(url)
+        _mapStateFlow[key]?.let { return it.asStateFlow() }
+
+        // 任务不存在时不保存信息流，否则任务结束时不会被移除
+        val wrapper = _mapDownloadInfo[key] ?: return MutableStateFlow(DownloadInfo(url)).asStateFlow()
+        val flow = MutableStateFlow(wrapper.downloadInfo.copy())
+        val result = _mapStateFlow.putIfAbsent(key, flow) ?: flow
+        if (result === flow && _mapDownloadInfo[key] !== wrapper) {
+            // 保存之前任务已经结束，不会再更新
+            _mapStateFlow.remove(key, flow)
+        }
+        return result.asStateFlow()
+    }
+
+    override fun observeResult(): Flow<DownloadResult> {
+        return _resultFlow.asSharedFlow()
+    }
+
     override suspend fun awaitTask(url: String, callback: IDownloadManager.Callback?): File? {
-        return suspendCoroutine { continuation ->
-            val add = addUrlCallback(url, object : IDownloadManager.Callback {
+        return suspendCancellableCoroutine { continuation ->
+            val urlCallback = object : IDownloadManager.Callback {
                 override fun onPrepare(info: DownloadInfo) {
                     callback?.onPrepare(info)
                 }
@@ -168,16 +455,21 @@ class FDownloadManager : IDownloadManager {
 
                 override fun onSuccess(info: DownloadInfo, file: File) {
                     callback?.onSuccess(info, file)
-                    continuation.resume(file)
+                    if (continuation.isActive) continuation.resume(file)
                 }
 
                 override fun onError(info: DownloadInfo) {
                     callback?.onError(info)
-                    continuation.resume(null)
+                    if (continuation.isActive) continuation.resume(null)
                 }
-            })
+            }
+
+            val add = addUrlCallback(url, urlCallback)
             if (add) {
-                // 等待任务完成
+                // 等待任务完成，调用方取消等待时移除回调，任务不受影响
+                continuation.invokeOnCancellation {
+                    _urlCallbackHolder.remove(urlCallback)
+                }
             } else {
                 continuation.resume(null)
             }
@@ -185,13 +477,16 @@ class FDownloadManager : IDownloadManager {
     }
 
     /**
-     * 任务结束，移除下载信息
+     * 任务结束，移除下载信息，只移除[wrapper]自己，不会影响同一个url后面添加的任务
      */
-    @Synchronized
-    private fun removeDownloadInfo(url: String): DownloadInfoWrapper? {
-        val wrapper = _mapDownloadInfo.remove(url)
-        if (wrapper != null) {
-            _mapTempFile.remove(wrapper.tempFile)
+    /**
+     * @param keepJournal 是否保留下载队列日志中的任务，下次恢复队列时重新下载
+     */
+    private fun removeDownloadInfo(wrapper: DownloadInfoWrapper, keepJournal: Boolean = false) {
+        val url = wrapper.downloadInfo.url
+        if (_mapDownloadInfo.remove(wrapper.key, wrapper)) {
+            _mapTempFile.remove(wrapper.tempFile, wrapper)
+            if (!keepJournal) journal(wrapper.key) { it.remove(wrapper.key) }
             if (config.isDebug) {
                 Log.i(
                     IDownloadManager.TAG, "removeDownloadInfo url:${url}" +
@@ -199,18 +494,45 @@ class FDownloadManager : IDownloadManager {
                 )
             }
         }
-        return wrapper
     }
 
-    private fun notifyPrepare(info: DownloadInfo) {
+    /**
+     * 更新[key]的下载信息流，没有调用过[observe]则忽略
+     */
+    private fun updateStateFlow(key: String, info: DownloadInfo) {
+        val flow = _mapStateFlow[key] ?: return
+        val copyInfo = info.copy()
+        synchronized(flow) {
+            // 取消任务时下载线程可能还在通知进度，不能覆盖结束状态
+            if (flow.value.state.isCompleted && copyInfo.state != DownloadState.Prepare) return
+            flow.value = copyInfo
+        }
+    }
+
+    /**
+     * 任务结束，更新下载信息流并发送结果
+     */
+    private fun notifyResult(key: String, info: DownloadInfo, file: File?) {
+        updateStateFlow(key, info)
+        // 任务结束之后不再保留下载信息流，收集者持有的信息流停留在结束状态，重新开始的任务使用新的信息流
+        _mapStateFlow[key]?.let { flow ->
+            // 任务已经重新开始并且创建了新的信息流，不能移除
+            if (flow.value.state.isCompleted) _mapStateFlow.remove(key, flow)
+        }
+        _resultFlow.tryEmit(DownloadResult(info.copy(), file))
+    }
+
+    private fun notifyPrepare(wrapper: DownloadInfoWrapper) {
+        val info = wrapper.downloadInfo
         info.notifyPrepare()
+        updateStateFlow(wrapper.key, info)
         val copyInfo = info.copy()
-        Utils.postMainThread {
+        config.callbackDispatcher.dispatch {
             for (item in _callbackHolder.keys) {
                 item.onPrepare(copyInfo)
             }
 
-            _urlCallbackHolder.getUrl(copyInfo.url)?.let {
+            _urlCallbackHolder.getUrl(wrapper.key)?.let {
                 for (item in it) {
                     item.onPrepare(copyInfo)
                 }
@@ -218,17 +540,21 @@ class FDownloadManager : IDownloadManager {
         }
     }
 
-    private fun notifyProgress(info: DownloadInfo, total: Long, current: Long) {
-        val changed = info.notifyDownloading(total, current)
-        if (!changed) return
+    private fun notifyProgress(wrapper: DownloadInfoWrapper, pending: AtomicBoolean) {
+        val info = wrapper.downloadInfo
+        // 已经有进度通知在等待分发，分发时会使用最新的进度
+        if (!pending.compareAndSet(false, true)) return
+
+        config.callbackDispatcher.dispatch {
+            pending.set(false)
+            val copyInfo = info.copy()
+            if (copyInfo.state != DownloadState.Downloading) return@dispatch
 
-        val copyInfo = info.copy()
-        Utils.postMainThread {
             for (item in _callbackHolder.keys) {
                 item.onProgress(copyInfo)
             }
 
-            _urlCallbackHolder.getUrl(copyInfo.url)?.let {
+            _urlCallbackHolder.getUrl(wrapper.key)?.let {
                 for (item in it) {
                     item.onProgress(copyInfo)
                 }
@@ -236,38 +562,63 @@ class FDownloadManager : IDownloadManager {
         }
     }
 
-    private fun notifySuccess(info: DownloadInfo, file: File) {
+    private fun notifySuccess(wrapper: DownloadInfoWrapper, file: File) {
+        val info = wrapper.downloadInfo
         info.notifySuccess()
+        notifyResult(wrapper.key, info, file)
         val copyInfo = info.copy()
-        Utils.postMainThread {
-            synchronized(this@FDownloadManager) {
-                removeDownloadInfo(copyInfo.url)
-                if (config.isDebug) {
-                    Log.i(IDownloadManager.TAG, "notify callback onSuccess url:${copyInfo.url} file:${file.absolutePath}")
-                }
-                for (item in _callbackHolder.keys) {
-                    item.onSuccess(copyInfo, file)
-                }
+        config.callbackDispatcher.dispatch {
+            val urlCallbacks = synchronized(getUrlLock(wrapper.key)) {
+                removeDownloadInfo(wrapper)
+                _urlCallbackHolder.removeUrl(wrapper.key)
+            }
 
-                _urlCallbackHolder.removeUrl(copyInfo.url)?.let {
-                    for (item in it) {
-                        item.onSuccess(copyInfo, file)
-                    }
+            if (config.isDebug) {
+                Log.i(IDownloadManager.TAG, "notify callback onSuccess url:${copyInfo.url} file:${file.absolutePath}")
+            }
+            for (item in _callbackHolder.keys) {
+                item.onSuccess(copyInfo, file)
+            }
+
+            urlCallbacks?.let {
+                for (item in it) {
+                    item.onSuccess(copyInfo, file)
                 }
             }
         }
     }
 
-    @Synchronized
-    private fun notifyError(info: DownloadInfo, error: DownloadError, throwable: Throwable? = null) {
+    /**
+     * @param wrapper 任务对应的下载信息，null表示任务还没有添加成功
+     * @param keepJournal 是否保留下载队列日志中的任务，网络异常等暂时性的失败下次恢复队列时重新下载
+     */
+    private fun notifyError(
+        wrapper: DownloadInfoWrapper?,
+        info: DownloadInfo,
+        error: DownloadError,
+        throwable: Throwable? = null,
+        keepJournal: Boolean = false
+    ) {
         // 立即移除下载信息，避免重新开始任务无效
-        removeDownloadInfo(info.url)
+        val urlCallbacks = if (wrapper == null) null else {
+            synchronized(getUrlLock(wrapper.key)) {
+                removeDownloadInfo(wrapper, keepJournal)
+                _urlCallbackHolder.removeUrl(wrapper.key)
+            }
+        }
+
+        if (wrapper != null) {
+            // 失败或者取消之后可能保留了临时文件用于断点下载
+            _downloadDirectory.notifyFileChanged(wrapper.tempFile)
+        }
+
         info.notifyError(error, throwable)
+        config.metrics.recordTaskError(DownloadMetrics.getHost(info.url), error)
+        notifyResult(wrapper?.key ?: keyOf(info.url), info, null)
         val copyInfo = info.copy()
 
         val callbacks = _callbackHolder.keys.toTypedArray()
-        val urlCallbacks = _urlCallbackHolder.removeUrl(copyInfo.url)
-        Utils.postMainThread {
+        config.callbackDispatcher.dispatch {
             if (config.isDebug) {
                 Log.i(IDownloadManager.TAG, "notify callback onError url:${copyInfo.url} error:${copyInfo.error}")
             }
@@ -285,26 +636,75 @@ class FDownloadManager : IDownloadManager {
 
     private inner class InternalDownloadUpdater : IDownloadUpdater {
         private val _iUrl: String
+        private val _iWrapper: DownloadInfoWrapper
         private val _iDownloadInfo: DownloadInfo
         private val _iTempFile: File
+        private val _iRetryPolicy: RetryPolicy
+        private val _iCreateTime = System.currentTimeMillis()
+
+        /** 任务是否已经结束，只能从false变为true一次 */
+        private val _iCompleted = AtomicBoolean()
+
+        private val _iProgressPending = AtomicBoolean()
+        private var _iLastNotifyProgress = -1L
+        private var _iLastNotifyCount = 0L
+        private var _iLastNotifyTime = 0L
+        private var _iLastCheckpointTime = 0L
+
+        constructor(wrapper: DownloadInfoWrapper, retryPolicy: RetryPolicy) {
+            _iUrl = wrapper.downloadInfo.url
+            _iWrapper = wrapper
+            _iDownloadInfo = wrapper.downloadInfo
+            _iTempFile = wrapper.tempFile
+            _iRetryPolicy = retryPolicy
+        }
 
-        @Volatile
-        private var _iCompleted = false
+        override fun notifyProgress(total: Long, current: Long) {
+            if (_iCompleted.get()) return
+            _iDownloadInfo.notifyDownloading(total, current)
+            if (checkNotifyProgress(total, current)) {
+                updateStateFlow(_iWrapper.key, _iDownloadInfo)
+                this@FDownloadManager.notifyProgress(_iWrapper, _iProgressPending)
+                checkpoint(total, current)
+            }
+        }
 
-        constructor(info: DownloadInfo, tempFile: File) {
-            _iUrl = info.url
-            _iDownloadInfo = info
-            _iTempFile = tempFile
+        /**
+         * 按照固定的间隔在下载队列日志中记录进度
+         */
+        private fun checkpoint(total: Long, current: Long) {
+            if (_journal == null) return
+            val time = System.currentTimeMillis()
+            if (time - _iLastCheckpointTime < JOURNAL_CHECKPOINT_INTERVAL) return
+            _iLastCheckpointTime = time
+
+            val key = _iWrapper.key
+            journal(key) { it.checkpoint(key, total, current) }
         }
 
-        override fun notifyProgress(total: Long, current: Long) {
-            if (_iCompleted) return
-            this@FDownloadManager.notifyProgress(_iDownloadInfo, total, current)
+        /**
+         * 根据进度通知策略检查是否需要通知进度
+         */
+        @Synchronized
+        private fun checkNotifyProgress(total: Long, current: Long): Boolean {
+            if (total <= 0 || current <= 0) return false
+
+            val policy = config.progressNotifyPolicy
+            val progress = (current.toDouble() / total * 100 * policy.precision).toLong()
+            if (progress <= _iLastNotifyProgress) return false
+            if (current - _iLastNotifyCount < policy.minBytes) return false
+
+            val time = System.currentTimeMillis()
+            if (time - _iLastNotifyTime < policy.minInterval) return false
+
+            _iLastNotifyProgress = progress
+            _iLastNotifyCount = current
+            _iLastNotifyTime = time
+            return true
         }
 
         override fun notifySuccess() {
-            if (_iCompleted) return
-            _iCompleted = true
+            if (!_iCompleted.compareAndSet(false, true)) return
 
             if (config.isDebug) {
                 Log.i(
@@ -320,7 +720,7 @@ class FDownloadManager : IDownloadManager {
                         "${IDownloadUpdater::class.java.simpleName} download success error temp file not exists ${_iUrl}"
                     )
                 }
-                this@FDownloadManager.notifyError(_iDownloadInfo, DownloadError.TempFileNotExists)
+                this@FDownloadManager.notifyError(_iWrapper, _iDownloadInfo, DownloadError.TempFileNotExists)
                 return
             }
 
@@ -332,49 +732,68 @@ class FDownloadManager : IDownloadManager {
                         "${IDownloadUpdater::class.java.simpleName} download success error create download file ${_iUrl}"
                     )
                 }
-                this@FDownloadManager.notifyError(_iDownloadInfo, DownloadError.CreateDownloadFile)
+                this@FDownloadManager.notifyError(_iWrapper, _iDownloadInfo, DownloadError.CreateDownloadFile)
                 return
             }
 
-            if (Utils.moveFile(_iTempFile, downloadFile)) {
-                this@FDownloadManager.notifySuccess(_iDownloadInfo, downloadFile)
+            val moved = Utils.moveFile(_iTempFile, downloadFile)
+            _downloadDirectory.notifyFileChanged(_iTempFile)
+            _downloadDirectory.notifyFileChanged(downloadFile)
+            if (moved) {
+                config.metrics.recordTaskSuccess(DownloadMetrics.getHost(_iUrl), System.currentTimeMillis() - _iCreateTime)
+                this@FDownloadManager.notifySuccess(_iWrapper, downloadFile)
+                scheduleTrimDirectory()
             } else {
                 if (config.isDebug) Log.e(
                     IDownloadManager.TAG,
                     "${IDownloadUpdater::class.java.simpleName} download success error rename temp file to download file ${_iUrl}"
                 )
-                this@FDownloadManager.notifyError(_iDownloadInfo, DownloadError.RenameFile)
+                this@FDownloadManager.notifyError(_iWrapper, _iDownloadInfo, DownloadError.RenameFile)
             }
         }
 
         override fun notifyError(e: Exception) {
-            if (_iCompleted) return
-            _iCompleted = true
+            if (!_iCompleted.compareAndSet(false, true)) return
 
             if (config.isDebug) Log.e(
                 IDownloadManager.TAG,
                 "${IDownloadUpdater::class.java.simpleName} download error:${e} ${_iUrl}"
             )
 
-            var error = DownloadError.Other
-            if (e is DownloadHttpException) {
-                error = DownloadError.Http
+            val error = when (e) {
+                is DownloadHttpException -> DownloadError.Http
+                is DownloadVerifyException -> e.error
+                is DownloadSpaceException -> DownloadError.InsufficientSpace
+                else -> DownloadError.Other
+            }
+            this@FDownloadManager.notifyError(_iWrapper, _iDownloadInfo, error, DownloadException.wrap(e), isTransientError(e))
+        }
+
+        /**
+         * 是否是网络异常等暂时性的失败，没有收到响应或者状态码可以重试
+         */
+        private fun isTransientError(e: Exception): Boolean {
+            return when (e) {
+                is DownloadHttpException -> e.responseCode < 0 || _iRetryPolicy.isRetryableCode(e.responseCode)
+                is DownloadVerifyException, is DownloadSpaceException -> false
+                else -> e is IOException
             }
-            this@FDownloadManager.notifyError(_iDownloadInfo, error, DownloadException.wrap(e))
         }
 
         override fun notifyCancel() {
-            if (_iCompleted) return
-            _iCompleted = true
+            if (!_iCompleted.compareAndSet(false, true)) return
 
             if (config.isDebug) {
                 Log.i(IDownloadManager.TAG, "${IDownloadUpdater::class.java.simpleName} download cancel ${_iUrl}")
             }
-            this@FDownloadManager.notifyError(_iDownloadInfo, DownloadError.Cancel)
+            this@FDownloadManager.notifyError(_iWrapper, _iDownloadInfo, DownloadError.Cancel)
         }
     }
 
     companion object {
+        /** 下载队列日志记录进度的间隔(毫秒) */
+        private const val JOURNAL_CHECKPOINT_INTERVAL = 5000L
+
         @JvmStatic
         val default: FDownloadManager by lazy {
             val directory = config.downloadDirectory
@@ -388,10 +807,13 @@ class FDownloadManager : IDownloadManager {
 }
 
 private class DownloadInfoWrapper {
+    /** url的缓存key */
+    val key: String
     val downloadInfo: DownloadInfo
     val tempFile: File
 
-    constructor(downloadInfo: DownloadInfo, tempFile: File) {
+    constructor(key: String, downloadInfo: DownloadInfo, tempFile: File) {
+        this.key = key
         this.downloadInfo = downloadInfo
         this.tempFile = tempFile
     }
@@ -1,5 +1,8 @@
 package com.sd.lib.dldmgr
 
+import com.sd.lib.dldmgr.metrics.DownloadMetricsSnapshot
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.StateFlow
 import java.io.File
 
 interface IDownloadManager {
@@ -81,10 +84,56 @@ interface IDownloadManager {
     fun cancelTask(url: String?): Boolean
 
     /**
-     * 监听任务
+     * 修改下载任务的优先级，优先级越高越先下载
+     *
+     * @return true-修改成功
+     */
+    fun setTaskPriority(url: String?, priority: Int): Boolean
+
+    /**
+     * 返回下载统计快照
+     */
+    fun getMetrics(): DownloadMetricsSnapshot
+
+    /**
+     * 返回[url]的下载信息流，只保留最新的状态，收集慢的一方只会收到最新的进度
+     *
+     * 任务不存在时返回的信息流不会更新，需要添加任务之后再调用此方法；
+     * 任务结束之后信息流停留在结束状态，不再更新，重新开始任务需要重新调用此方法
+     */
+    fun observe(url: String): StateFlow<DownloadInfo>
+
+    /**
+     * 返回所有任务的结果流，只包含成功和失败，收集者处理不及时会丢弃最旧的结果
+     */
+    fun observeResult(): Flow<DownloadResult>
+
+    /**
+     * 等待任务结束，返回下载文件，下载失败返回null。调用方的协程被取消时只移除监听，不会取消下载任务
      */
     suspend fun awaitTask(url: String, callback: Callback? = null): File?
 
+    /**
+     * 在后台线程按照[policy]分批清理下载目录，[callback]在回调分发器上执行
+     */
+    fun cleanup(policy: CleanupPolicy, callback: CleanupCallback?)
+
+    /**
+     * 按照[policy]清理下载目录，返回删除的文件数量。调用方的协程被取消时清理不会停止
+     */
+    suspend fun awaitCleanup(policy: CleanupPolicy): Int
+
+    /**
+     * 在后台线程恢复上次进程结束时没有完成的任务，包括因为网络异常失败的任务，从临时文件已经下载的位置继续下载，
+     * 需要开启[DownloadManagerConfig.isQueueJournal]。[callback]在回调分发器上执行
+     */
+    fun restoreQueue(callback: RestoreCallback?)
+
+    /**
+     * 恢复上次进程结束时没有完成的任务，返回恢复的任务数量。调用方的协程被取消时恢复不会停止
+     */
+    suspend fun awaitRestoreQueue(): Int
+
     /**
      * 下载回调
      */
@@ -112,7 +161,40 @@ interface IDownloadManager {
         fun onError(info: DownloadInfo)
     }
 
-    abstract class CallbackAdapter : Callback {
+    /**
+     * 清理回调
+     */
+    interface CleanupCallback {
+        /**
+         * 清理进度，每一批删除结束之后通知
+         *
+         * @param deleted   已经删除的文件数量
+         * @param processed 已经处理的文件数量
+         * @param total     满足条件的文件总数量
+         */
+        fun onProgress(deleted: Int, processed: Int, total: Int)
+
+        /**
+         * 清理结束
+         *
+         * @param deleted 删除的文件数量
+         */
+        fun onComplete(deleted: Int)
+    }
+
+    /**
+     * 恢复下载队列回调
+     */
+    interface RestoreCallback {
+        /**
+         * 恢复结束
+         *
+         * @param count 恢复的任务数量
+         */
+        fun onComplete(count: Int)
+    }
+
+        abstract class CallbackAdapter : Callback {
         override fun onPrepare(info: DownloadInfo) {}
 
         override fun onProgress(info: DownloadInfo) {}
@@ -0,0 +1,68 @@
+package com.sd.lib.dldmgr
+
+/**
+ * 下载进度通知策略
+ *
+ * 同一个任务的进度通知满足所有条件才会发出，并且每个任务最多只有一个进度通知在等待分发，分发时使用最新的进度
+ */
+class ProgressNotifyPolicy {
+    /** 两次进度通知的最小间隔(毫秒) */
+    val minInterval: Long
+
+    /** 两次进度通知之间的最小下载量(字节) */
+    val minBytes: Long
+
+    /** 进度精度，进度变化达到(1/precision)%才通知，例如：1-每1%通知一次；100-每0.01%通知一次 */
+    val precision: Int
+
+    private constructor(builder: Builder) {
+        minInterval = builder.minInterval
+        minBytes = builder.minBytes
+        precision = builder.precision
+    }
+
+    class Builder {
+        var minInterval: Long = 100
+            private set
+
+        var minBytes: Long = 0
+            private set
+
+        var precision: Int = 1
+            private set
+
+        /**
+         * 设置两次进度通知的最小间隔(毫秒)，默认100毫秒
+         */
+        fun setMinInterval(interval: Long): Builder {
+            minInterval = interval.coerceAtLeast(0)
+            return this
+        }
+
+        /**
+         * 设置两次进度通知之间的最小下载量(字节)，默认0
+         */
+        fun setMinBytes(bytes: Long): Builder {
+            minBytes = bytes.coerceAtLeast(0)
+            return this
+        }
+
+        /**
+         * 设置进度精度，默认1，即每1%通知一次，大文件可以设置更高的精度，例如：100-每0.01%通知一次
+         */
+        fun setPrecision(precision: Int): Builder {
+            this.precision = precision.coerceAtLeast(1)
+            return this
+        }
+
+        fun build(): ProgressNotifyPolicy {
+            return ProgressNotifyPolicy(this)
+        }
+    }
+
+    companion object {
+        /** 默认策略 */
+        @JvmField
+        val DEFAULT = Builder().build()
+    }
+}
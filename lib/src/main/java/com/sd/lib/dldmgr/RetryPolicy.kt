@@ -0,0 +1,147 @@
+package com.sd.lib.dldmgr
+
+import java.util.*
+
+/**
+ * 下载失败重试策略
+ *
+ * 连接或者读写异常，以及可以重试的状态码会在等待一段时间之后重试，重试时从临时文件已经下载的位置继续下载（服务端需要支持Range请求，
+ * 并且返回ETag或者Last-Modified）。等待时间按照指数增长，并且加上随机抖动，避免大量任务同时重试
+ */
+class RetryPolicy {
+    /** 最多尝试次数，包括第一次下载，1表示不重试 */
+    val maxAttempts: Int
+
+    /** 第一次重试之前的等待时间(毫秒) */
+    val initialDelay: Long
+
+    /** 重试之前的最大等待时间(毫秒) */
+    val maxDelay: Long
+
+    /** 每次重试等待时间的增长倍数 */
+    val multiplier: Double
+
+    /** 随机抖动比例(0-1)，实际等待时间在[delay * (1 - jitter), delay]之间 */
+    val jitter: Double
+
+    /** 是否重试5xx状态码 */
+    val isRetryServerError: Boolean
+
+    /** 可以重试的状态码 */
+    val retryableCodes: Set<Int>
+
+    private constructor(builder: Builder) {
+        maxAttempts = builder.maxAttempts
+        initialDelay = builder.initialDelay
+        maxDelay = builder.maxDelay
+        multiplier = builder.multiplier
+        jitter = builder.jitter
+        isRetryServerError = builder.isRetryServerError
+        retryableCodes = HashSet(builder.retryableCodes)
+    }
+
+    /**
+     * 状态码[code]是否可以重试
+     */
+    fun isRetryableCode(code: Int): Boolean {
+        if (isRetryServerError && code in 500..599) return true
+        return retryableCodes.contains(code)
+    }
+
+    /**
+     * 返回第[attempt]次下载失败之后，重试之前需要等待的时间(毫秒)
+     */
+    fun getDelay(attempt: Int): Long {
+        val delay = minOf(initialDelay * Math.pow(multiplier, (attempt - 1).toDouble()), maxDelay.toDouble())
+        return (delay * (1 - jitter * sRandom.nextDouble())).toLong()
+    }
+
+    class Builder {
+        var maxAttempts: Int = 3
+            private set
+
+        var initialDelay: Long = 1000
+            private set
+
+        var maxDelay: Long = 30 * 1000
+            private set
+
+        var multiplier: Double = 2.0
+            private set
+
+        var jitter: Double = 0.5
+            private set
+
+        var isRetryServerError = true
+            private set
+
+        private val _retryableCodes: MutableSet<Int> = hashSetOf(408, 429)
+
+        val retryableCodes: Set<Int>
+            get() = _retryableCodes
+
+        /**
+         * 设置最多尝试次数，包括第一次下载，默认3
+         */
+        fun setMaxAttempts(attempts: Int): Builder {
+            maxAttempts = attempts.coerceAtLeast(1)
+            return this
+        }
+
+        /**
+         * 设置重试之前的等待时间(毫秒)，第n次重试等待：initialDelay * multiplier^(n-1)，最多等待maxDelay。
+         * 默认：1秒，30秒，2倍
+         */
+        @JvmOverloads
+        fun setDelay(initialDelay: Long, maxDelay: Long = this.maxDelay, multiplier: Double = this.multiplier): Builder {
+            this.initialDelay = initialDelay.coerceAtLeast(0)
+            this.maxDelay = maxDelay.coerceAtLeast(this.initialDelay)
+            this.multiplier = multiplier.coerceAtLeast(1.0)
+            return this
+        }
+
+        /**
+         * 设置随机抖动比例(0-1)，默认0.5，即实际等待时间在计算结果的50%到100%之间
+         */
+        fun setJitter(jitter: Double): Builder {
+            this.jitter = jitter.coerceIn(0.0, 1.0)
+            return this
+        }
+
+        /**
+         * 设置是否重试5xx状态码，默认true
+         */
+        fun setRetryServerError(retry: Boolean): Builder {
+            isRetryServerError = retry
+            return this
+        }
+
+        /**
+         * 添加可以重试的状态码，默认：408，429
+         */
+        fun addRetryableCode(vararg code: Int): Builder {
+            _retryableCodes.addAll(code.toList())
+            return this
+        }
+
+        /**
+         * 清空可以重试的状态码
+         */
+        fun clearRetryableCode(): Builder {
+            _retryableCodes.clear()
+            return this
+        }
+
+        fun build(): RetryPolicy {
+            return RetryPolicy(this)
+        }
+    }
+
+    companion object {
+        private val sRandom = Random()
+
+        /** 不重试 */
+        @JvmField
+        val NONE = Builder().setMaxAttempts(1).build()
+    }
+}
@@ -17,6 +17,10 @@ class TransmitParam {
     var progress = 0
         private set
 
+    /** 精确的传输进度，例如：12.34 */
+    var preciseProgress = 0f
+        private set
+
     /** 传输速率(Bps) */
     var speedBps = 0
         private set
@@ -42,11 +46,13 @@ class TransmitParam {
     /**
      * 拷贝对象
      */
+    @Synchronized
     fun copy(): TransmitParam {
         val copy = TransmitParam(_calculateSpeedInterval)
         copy.current = current
         copy.total = total
         copy.progress = progress
+        copy.preciseProgress = preciseProgress
         copy.speedBps = speedBps
         copy._lastTime = _lastTime
         copy._lastCount = _lastCount
@@ -81,6 +87,7 @@ class TransmitParam {
         }
 
         progress = (current * 100 / total).toInt()
+        preciseProgress = current * 100f / total
         return progress > oldProgress
     }
 
@@ -88,6 +95,7 @@ class TransmitParam {
         current = 0
         total = 0
         progress = 0
+        preciseProgress = 0f
         speedBps = 0
         _lastTime = 0
         _lastCount = 0
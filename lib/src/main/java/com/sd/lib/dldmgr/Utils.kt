@@ -2,20 +2,13 @@ package com.sd.lib.dldmgr
 
 import android.content.Context
 import android.os.Environment
-import android.os.Handler
-import android.os.Looper
 import android.webkit.MimeTypeMap
 import com.sd.lib.dldmgr.directory.IDownloadDirectory
 import java.io.File
+import java.io.RandomAccessFile
 import java.security.MessageDigest
 
 internal object Utils {
-    private val HANDLER = Handler(Looper.getMainLooper())
-
-    fun postMainThread(runnable: Runnable) {
-        HANDLER.post(runnable)
-    }
-
     fun getCacheDir(name: String, context: Context): File {
         return if (Environment.MEDIA_MOUNTED == Environment.getExternalStorageState()) {
             File(context.externalCacheDir, name)
@@ -90,6 +83,21 @@ internal object Utils {
         }
     }
 
+    /**
+     * 把[file]截断为[length]，文件长度小于等于[length]时不处理
+     */
+    fun truncateFile(file: File, length: Long): Boolean {
+        return try {
+            if (file.length() > length) {
+                RandomAccessFile(file, "rw").use { it.setLength(length) }
+            }
+            true
+        } catch (e: Exception) {
+            e.printStackTrace()
+            false
+        }
+    }
+
     /**
      * 删除[file]文件或者目录
      */
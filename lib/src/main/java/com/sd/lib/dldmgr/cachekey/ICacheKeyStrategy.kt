@@ -0,0 +1,13 @@
+package com.sd.lib.dldmgr.cachekey
+
+/**
+ * 缓存key策略，根据url返回缓存key。
+ *
+ * key相同的url被当作同一个文件：同时只会有一个下载任务，使用同一个临时文件断点下载，下载成功之后对应同一个下载文件
+ */
+interface ICacheKeyStrategy {
+    /**
+     * 返回[url]对应的缓存key，同一个url每次都要返回相同的key
+     */
+    fun getKey(url: String): String
+}
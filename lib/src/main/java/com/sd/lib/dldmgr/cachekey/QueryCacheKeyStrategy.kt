@@ -0,0 +1,83 @@
+package com.sd.lib.dldmgr.cachekey
+
+/**
+ * 规范化url的查询参数作为缓存key，去掉片段(#之后的部分)和指定的查询参数，剩下的参数按照字典序排序。
+ *
+ * 例如忽略参数token时：http://a.com/1.mp4?b=2&token=x&a=1 和 http://a.com/1.mp4?a=1&b=2&token=y 的key相同
+ */
+class QueryCacheKeyStrategy : ICacheKeyStrategy {
+    /** 忽略的查询参数名称 */
+    private val _ignoredParams: Set<String>
+
+    /** 是否忽略所有查询参数 */
+    private val _ignoreAllParams: Boolean
+
+    /** 是否对查询参数排序 */
+    private val _sortParams: Boolean
+
+    private constructor(builder: Builder) {
+        _ignoredParams = HashSet(builder.ignoredParams)
+        _ignoreAllParams = builder.isIgnoreAllParams
+        _sortParams = builder.isSortParams
+    }
+
+    override fun getKey(url: String): String {
+        val fragmentIndex = url.indexOf('#')
+        val address = if (fragmentIndex < 0) url else url.substring(0, fragmentIndex)
+
+        val queryIndex = address.indexOf('?')
+        if (queryIndex < 0) return address
+
+        val path = address.substring(0, queryIndex)
+        if (_ignoreAllParams) return path
+
+        val params = address.substring(queryIndex + 1).split('&').filter {
+            it.isNotEmpty() && !_ignoredParams.contains(it.substringBefore('='))
+        }
+        if (params.isEmpty()) return path
+
+        val list = if (_sortParams) params.sorted() else params
+        return path + "?" + list.joinToString("&")
+    }
+
+    class Builder {
+        private val _ignoredParams: MutableSet<String> = HashSet()
+
+        val ignoredParams: Set<String>
+            get() = _ignoredParams
+
+        var isIgnoreAllParams = false
+            private set
+
+        var isSortParams = true
+            private set
+
+        /**
+         * 添加忽略的查询参数名称，例如CDN签名的token，过期时间等每次请求都会变化的参数
+         */
+        fun addIgnoredParam(vararg name: String): Builder {
+            _ignoredParams.addAll(name)
+            return this
+        }
+
+        /**
+         * 设置是否忽略所有查询参数，默认false
+         */
+        fun setIgnoreAllParams(ignore: Boolean): Builder {
+            isIgnoreAllParams = ignore
+            return this
+        }
+
+        /**
+         * 设置是否对查询参数排序，默认true，参数顺序不同的url对应同一个key
+         */
+        fun setSortParams(sort: Boolean): Builder {
+            isSortParams = sort
+            return this
+        }
+
+        fun build(): QueryCacheKeyStrategy {
+            return QueryCacheKeyStrategy(this)
+        }
+    }
+}
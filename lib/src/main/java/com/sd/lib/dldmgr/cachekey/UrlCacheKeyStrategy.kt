@@ -0,0 +1,10 @@
+package com.sd.lib.dldmgr.cachekey
+
+/**
+ * 直接使用url作为缓存key
+ */
+class UrlCacheKeyStrategy : ICacheKeyStrategy {
+    override fun getKey(url: String): String {
+        return url
+    }
+}
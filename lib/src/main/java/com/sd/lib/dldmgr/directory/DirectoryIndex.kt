@@ -0,0 +1,272 @@
+package com.sd.lib.dldmgr.directory
+
+import com.sd.lib.dldmgr.Utils
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 下载目录的内存索引，文件名 -> 文件信息
+ *
+ * 第一次查询的时候扫描一次目录，之后由下载器自己的写入和删除操作维护。
+ * 索引包含目录中的所有文件，所以索引中不存在即文件不存在，查询不需要访问磁盘
+ *
+ * 分片布局下文件保存在两级子目录中，例如：ab12...34.mp3保存在a/b/ab12...34.mp3，
+ * 每一级16个子目录，一共256个子目录。扫描目录时不移动文件，不符合当前布局的文件由[migrate]在后台线程移动到正确的位置，
+ * 移动之前被查询到的文件会立即单独移动
+ */
+internal class DirectoryIndex(
+    private val directory: File,
+    /** 是否使用分片布局 */
+    private val sharded: Boolean
+) {
+    private val _entries = ConcurrentHashMap<String, IndexEntry>()
+
+    /** 下载文件(不包括临时文件)的总大小 */
+    private val _totalSize = AtomicLong()
+
+    /** 下载文件(不包括临时文件)的数量 */
+    private val _fileCount = AtomicInteger()
+
+    @Volatile
+    private var _loaded = false
+
+    /** 扫描目录时发现的不符合当前布局的文件，等待移动 */
+    private val _pendingMoves = ConcurrentLinkedQueue<File>()
+
+    /** 不使用分片布局时扫描到的分片目录，文件移动完成之后删除 */
+    private val _pendingDirs = ConcurrentLinkedQueue<File>()
+
+    /**
+     * 返回[name]文件在当前布局下的位置，不访问磁盘
+     */
+    fun fileOf(name: String): File {
+        if (!sharded) return File(directory, name)
+
+        val hex = if (name.length >= 2 && isHex(name[0]) && isHex(name[1])) name else Utils.md5(name)
+        return File(directory, "${hex[0]}${File.separatorChar}${hex[1]}${File.separatorChar}${name}")
+    }
+
+    /**
+     * 返回[name]对应的文件信息，null-文件不存在
+     */
+    fun get(name: String): IndexEntry? {
+        ensureLoaded()
+        val entry = _entries[name] ?: return null
+        if (_pendingMoves.isEmpty() || entry.file == fileOf(name)) return entry
+
+        // 还没有移动到正确的位置，只移动这一个文件
+        synchronized(this@DirectoryIndex) {
+            moveFile(entry.file)
+        }
+        return _entries[name]
+    }
+
+    /**
+     * 把不符合当前布局的文件移动到正确的位置，每次只在移动单个文件的时候持有锁，查询不需要等待所有文件移动完成。
+     * 需要在后台线程调用
+     */
+    fun migrate() {
+        ensureLoaded()
+        while (true) {
+            val file = _pendingMoves.poll() ?: break
+            synchronized(this@DirectoryIndex) {
+                moveFile(file)
+            }
+        }
+        while (true) {
+            // 先删除子目录，不为空的目录不会被删除
+            val dir = _pendingDirs.poll() ?: break
+            dir.listFiles()?.forEach { if (it.isDirectory) it.delete() }
+            dir.delete()
+        }
+    }
+
+    /**
+     * 返回所有文件信息
+     */
+    fun entries(): List<IndexEntry> {
+        ensureLoaded()
+        return ArrayList(_entries.values)
+    }
+
+    /**
+     * 返回下载文件(不包括临时文件)的总大小
+     */
+    fun totalSize(): Long {
+        ensureLoaded()
+        return _totalSize.get()
+    }
+
+    /**
+     * 返回下载文件(不包括临时文件)的数量
+     */
+    fun fileCount(): Int {
+        ensureLoaded()
+        return _fileCount.get()
+    }
+
+    /**
+     * 文件被创建、修改或者删除之后调用，重新读取[file]的信息
+     */
+    fun update(file: File) {
+        if (!_loaded) {
+            // 正在扫描目录的话，等扫描结束之后再更新，避免扫描结果覆盖这次修改
+            synchronized(this@DirectoryIndex) {
+                if (!_loaded) return
+            }
+        }
+        val entry = IndexEntry.of(file)
+        if (entry != null) {
+            put(entry)
+        } else {
+            remove(file)
+        }
+    }
+
+    /**
+     * 文件被删除之后调用
+     */
+    fun remove(file: File) {
+        _entries.remove(file.name)?.let { onEntryChanged(it, -1) }
+    }
+
+    private fun put(entry: IndexEntry) {
+        _entries.put(entry.file.name, entry)?.let { onEntryChanged(it, -1) }
+        onEntryChanged(entry, 1)
+    }
+
+    private fun onEntryChanged(entry: IndexEntry, sign: Int) {
+        if (entry.isTemp) return
+        _totalSize.addAndGet(sign * entry.size)
+        _fileCount.addAndGet(sign)
+    }
+
+    /**
+     * 清空索引，下次查询的时候重新扫描目录
+     */
+    @Synchronized
+    fun invalidate() {
+        _loaded = false
+        _entries.clear()
+        _pendingMoves.clear()
+        _pendingDirs.clear()
+        _totalSize.set(0)
+        _fileCount.set(0)
+    }
+
+    private fun ensureLoaded() {
+        if (_loaded) return
+        synchronized(this@DirectoryIndex) {
+            if (_loaded) return
+            if (Utils.checkDir(directory)) {
+                scan()
+            }
+            _loaded = true
+        }
+    }
+
+    private fun scan() {
+        val files = directory.listFiles() ?: return
+        for (item in files) {
+            if (!item.isDirectory) {
+                addFile(item)
+                continue
+            }
+            if (!isShardName(item.name)) continue
+
+            val subDirs = item.listFiles() ?: continue
+            for (subDir in subDirs) {
+                if (!subDir.isDirectory || !isShardName(subDir.name)) continue
+                subDir.listFiles()?.forEach { addFile(it) }
+            }
+            if (!sharded) _pendingDirs.add(item)
+        }
+    }
+
+    /**
+     * 把扫描到的[file]加入索引，不符合当前布局的文件记录下来等待移动
+     */
+    private fun addFile(file: File) {
+        val entry = IndexEntry.of(file) ?: return
+        if (fileOf(file.name) != file) {
+            _pendingMoves.add(file)
+            // 正确的位置已经有文件了，保留正确位置的文件
+            if (_entries[file.name]?.let { it.file == fileOf(file.name) } == true) return
+        }
+        put(entry)
+    }
+
+    /**
+     * 把[file]移动到当前布局的正确位置并更新索引，需要持有锁
+     */
+    private fun moveFile(file: File) {
+        // 已经移动过或者被删除了
+        if (!file.isFile) return
+
+        val expected = fileOf(file.name)
+        if (expected.exists()) {
+            // 正确的位置已经有文件了，保留正确位置的文件
+            Utils.delete(file)
+        } else if (!Utils.checkDir(expected.parentFile) || !file.renameTo(expected)) {
+            return
+        }
+
+        if (_entries[file.name]?.file == file) {
+            val entry = IndexEntry.of(expected)
+            if (entry != null) put(entry) else remove(file)
+        }
+    }
+
+    companion object {
+        private val sIndexes = ConcurrentHashMap<String, DirectoryIndex>()
+
+        /**
+         * 返回[directory]对应的索引，同一个目录的多个[DownloadDirectory]对象共用一个索引
+         */
+        fun of(directory: File, sharded: Boolean): DirectoryIndex {
+            val key = "${directory.absolutePath}|${sharded}"
+            sIndexes[key]?.let { return it }
+            val index = DirectoryIndex(directory, sharded)
+            return sIndexes.putIfAbsent(key, index) ?: index
+        }
+
+        private fun isHex(c: Char): Boolean {
+            return c in '0'..'9' || c in 'a'..'f'
+        }
+
+        private fun isShardName(name: String): Boolean {
+            return name.length == 1 && isHex(name[0])
+        }
+    }
+}
+
+/**
+ * 索引中的文件信息
+ */
+internal class IndexEntry(
+    val file: File,
+    /** 文件大小 */
+    val size: Long,
+    /** 最后修改时间 */
+    val lastModified: Long
+) {
+    /** 是否是临时文件 */
+    val isTemp: Boolean = file.name.endsWith(IDownloadDirectory.EXT_TEMP)
+
+    /** 最后访问时间，只记录在内存中，重新扫描目录之后等于最后修改时间 */
+    @Volatile
+    var lastAccess: Long = lastModified
+
+    companion object {
+        /**
+         * 读取[file]的信息，文件不存在或者不是文件返回null
+         */
+        fun of(file: File): IndexEntry? {
+            if (!file.isFile) return null
+            return IndexEntry(file, file.length(), file.lastModified())
+        }
+    }
+}
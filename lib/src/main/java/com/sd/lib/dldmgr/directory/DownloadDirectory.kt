@@ -1,14 +1,25 @@
 package com.sd.lib.dldmgr.directory
 
+import com.sd.lib.dldmgr.CleanupPolicy
 import com.sd.lib.dldmgr.Utils
+import com.sd.lib.dldmgr.cachekey.ICacheKeyStrategy
+import com.sd.lib.dldmgr.cachekey.UrlCacheKeyStrategy
 import com.sd.lib.dldmgr.directory.IDownloadDirectory.FileInterceptor
 import java.io.File
 
 class DownloadDirectory : IDownloadDirectory {
     protected val directory: File
 
-    private constructor(directory: File?) {
+    /** 目录的内存索引，查询文件是否存在不需要访问磁盘 */
+    private val _index: DirectoryIndex
+
+    /** 缓存key策略，文件名根据url对应的key生成 */
+    private val _keyStrategy: ICacheKeyStrategy
+
+    private constructor(directory: File?, sharded: Boolean, keyStrategy: ICacheKeyStrategy) {
         this.directory = directory ?: File("path")
+        _index = DirectoryIndex.of(this.directory, sharded)
+        _keyStrategy = keyStrategy
     }
 
     override fun checkExist(): Boolean {
@@ -16,8 +27,10 @@ class DownloadDirectory : IDownloadDirectory {
     }
 
     override fun getFile(url: String?): File? {
-        val file = newUrlFile(url) ?: return null
-        return if (file.exists()) file else null
+        if (url == null || url.isEmpty()) return null
+        val entry = _index.get(fileNameOf(url).fileName) ?: return null
+        entry.lastAccess = System.currentTimeMillis()
+        return entry.file
     }
 
     override fun getFile(url: String?, defaultFile: File?): File? {
@@ -25,8 +38,8 @@ class DownloadDirectory : IDownloadDirectory {
     }
 
     override fun getTempFile(url: String?): File? {
-        val file = newUrlTempFile(url) ?: return null
-        return if (file.exists()) file else null
+        if (url == null || url.isEmpty()) return null
+        return _index.get(fileNameOf(url).tempFileName)?.file
     }
 
     @Synchronized
@@ -34,11 +47,11 @@ class DownloadDirectory : IDownloadDirectory {
         if (!file.exists()) return file
         if (file.isDirectory) throw IllegalArgumentException("file must not be a directory")
 
-        val dir = directory
-        if (!Utils.checkDir(dir)) return file
+        val newFile = _index.fileOf(file.name)
+        if (!Utils.checkDir(newFile.parentFile)) return file
 
-        val newFile = File(dir, file.name)
         return if (Utils.copyFile(file, newFile)) {
+            _index.update(newFile)
             newFile
         } else {
             file
@@ -50,11 +63,11 @@ class DownloadDirectory : IDownloadDirectory {
         if (!file.exists()) return file
         if (file.isDirectory) throw IllegalArgumentException("file must not be a directory")
 
-        val dir = directory
-        if (!Utils.checkDir(dir)) return file
+        val newFile = _index.fileOf(file.name)
+        if (!Utils.checkDir(newFile.parentFile)) return file
 
-        val newFile = File(dir, file.name)
         return if (Utils.moveFile(file, newFile)) {
+            _index.update(newFile)
             newFile
         } else {
             file
@@ -71,11 +84,11 @@ class DownloadDirectory : IDownloadDirectory {
         if (files == null || files.isEmpty()) return 0
 
         var count = 0
-        var delete = false
         for (file in files) {
             val name = file.name
             if (name.endsWith(IDownloadDirectory.EXT_TEMP)) continue
 
+            var delete = false
             if (ext == null) {
                 delete = true
             } else {
@@ -84,6 +97,7 @@ class DownloadDirectory : IDownloadDirectory {
             }
 
             if (delete && Utils.delete(file)) {
+                _index.remove(file)
                 count++
             }
         }
@@ -101,50 +115,136 @@ class DownloadDirectory : IDownloadDirectory {
                 continue
             }
             if (file.name.endsWith(IDownloadDirectory.EXT_TEMP)) {
-                if (Utils.delete(file)) count++
+                if (Utils.delete(file)) {
+                    _index.remove(file)
+                    count++
+                }
             }
         }
         return count
     }
 
-    private fun getAllFile(): Array<File>? {
-        val dir = directory
-        if (!Utils.checkDir(dir)) return null
+    /**
+     * 返回满足[policy]的文件，从内存索引中获取，不需要遍历目录
+     */
+    internal fun findFiles(policy: CleanupPolicy): List<File> {
+        val now = System.currentTimeMillis()
+        return _index.entries()
+            .filter { policy.accept(it, now) }
+            .map { it.file }
+    }
 
-        val files = dir.listFiles()
-        return if (files == null || files.isEmpty()) null else files
+    /**
+     * 删除[file]并更新内存索引
+     */
+    @Synchronized
+    internal fun delete(file: File): Boolean {
+        if (!file.exists()) {
+            // 已经被删除了
+            _index.remove(file)
+            return false
+        }
+        if (!Utils.delete(file)) return false
+        _index.remove(file)
+        return true
+    }
+
+    /**
+     * 按照最近最少使用的顺序删除下载文件，直到下载文件的总大小和数量都不超过限制。
+     * 临时文件不计算在内，也不会被删除
+     *
+     * @param maxSize     下载文件的最大总大小(字节)，小于等于0表示不限制
+     * @param maxCount    下载文件的最大数量，小于等于0表示不限制
+     * @param interceptor 拦截的文件不会被删除
+     * @return 返回删除的文件数量
+     */
+    @Synchronized
+    fun trimToSize(maxSize: Long, maxCount: Int, interceptor: FileInterceptor?): Int {
+        if (!isOverLimit(maxSize, maxCount)) return 0
+
+        // 排序过程中访问时间可能被修改，先记录下来再排序
+        val entries = _index.entries()
+            .filter { !it.isTemp }
+            .map { it to it.lastAccess }
+            .sortedBy { it.second }
+
+        var count = 0
+        for (item in entries) {
+            if (!isOverLimit(maxSize, maxCount)) break
+
+            val file = item.first.file
+            if (interceptor != null && interceptor.intercept(file)) continue
+            if (Utils.delete(file)) {
+                _index.remove(file)
+                count++
+            }
+        }
+        return count
+    }
+
+    private fun isOverLimit(maxSize: Long, maxCount: Int): Boolean {
+        if (maxSize > 0 && _index.totalSize() > maxSize) return true
+        if (maxCount > 0 && _index.fileCount() > maxCount) return true
+        return false
+    }
+
+    /**
+     * 返回目录中的所有文件，从内存索引中获取，不需要遍历目录
+     */
+    private fun getAllFile(): List<File>? {
+        val entries = _index.entries()
+        return if (entries.isEmpty()) null else entries.map { it.file }
+    }
+
+    /**
+     * 扫描目录并把不符合当前布局的文件移动到正确的位置，需要在后台线程调用
+     */
+    internal fun migrate() {
+        _index.migrate()
+    }
+
+    /**
+     * 清空内存索引，下次查询的时候重新扫描目录。目录被其他程序修改之后需要调用此方法
+     */
+    fun invalidateIndex() {
+        _index.invalidate()
+    }
+
+    /**
+     * 下载器修改了[file]之后调用，更新内存索引，临时文件会同时更新对应的断点信息文件
+     */
+    internal fun notifyFileChanged(file: File) {
+        _index.update(file)
+
+        val name = file.name
+        if (name.endsWith(IDownloadDirectory.EXT_TEMP) && !name.endsWith(IDownloadDirectory.EXT_TEMP_INFO)) {
+            val infoName = name.removeSuffix(IDownloadDirectory.EXT_TEMP) + IDownloadDirectory.EXT_TEMP_INFO
+            _index.update(File(file.parentFile, infoName))
+        }
     }
 
     internal fun newUrlFile(url: String?): File? {
         if (url == null || url.isEmpty()) {
             return null
         }
-        val ext = Utils.getExt(url)
-        return createUrlFile(url, ext)
+        return createUrlFile(fileNameOf(url).fileName)
     }
 
     internal fun newUrlTempFile(url: String?): File? {
         if (url == null || url.isEmpty()) {
             return null
         }
-        val ext = IDownloadDirectory.EXT_TEMP
-        return createUrlFile(url, ext)
+        return createUrlFile(fileNameOf(url).tempFileName)
     }
 
-    private fun createUrlFile(url: String, ext: String?): File? {
-        if (url.isEmpty()) return null
-
-        val dir = directory
-        if (!Utils.checkDir(dir)) return null
-
-        val finalExt = if (ext == null || ext.isEmpty()) {
-            ""
-        } else {
-            if (ext.startsWith(".")) ext else ".${ext}"
-        }
+    private fun fileNameOf(url: String): UrlFileName {
+        return UrlFileName.of(_keyStrategy.getKey(url))
+    }
 
-        val fileName = Utils.md5(url) + finalExt
-        return File(dir, fileName)
+    private fun createUrlFile(fileName: String): File? {
+        val file = _index.fileOf(fileName)
+        if (!Utils.checkDir(file.parentFile)) return null
+        return file
     }
 
     override fun hashCode(): Int {
@@ -162,9 +262,19 @@ class DownloadDirectory : IDownloadDirectory {
     }
 
     companion object {
+        /**
+         * @param sharded 是否使用分片布局，文件数量很多(例如10万以上)时建议开启，
+         * 开启或者关闭之后，已有的文件会在后台线程移动到新布局对应的位置，移动之前查询到的文件会立即移动。同一个目录需要使用相同的布局
+         * @param keyStrategy 缓存key策略，需要和下载时使用的策略相同，否则查询不到下载的文件
+         */
         @JvmStatic
-        fun from(directory: File?): DownloadDirectory {
-            return DownloadDirectory(directory)
+        @JvmOverloads
+        fun from(
+            directory: File?,
+            sharded: Boolean = false,
+            keyStrategy: ICacheKeyStrategy = UrlCacheKeyStrategy()
+        ): DownloadDirectory {
+            return DownloadDirectory(directory, sharded, keyStrategy)
         }
     }
 }
\ No newline at end of file
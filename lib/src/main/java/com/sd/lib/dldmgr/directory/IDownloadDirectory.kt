@@ -75,5 +75,8 @@ interface IDownloadDirectory {
     companion object {
         /** 临时文件扩展名  */
         const val EXT_TEMP = ".temp"
+
+        /** 临时文件对应的断点信息文件扩展名，例如：xxx.temp的断点信息文件为xxx.info.temp */
+        const val EXT_TEMP_INFO = ".info" + EXT_TEMP
     }
 }
\ No newline at end of file
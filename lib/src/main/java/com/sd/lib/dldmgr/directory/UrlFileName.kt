@@ -0,0 +1,40 @@
+package com.sd.lib.dldmgr.directory
+
+import com.sd.lib.dldmgr.Utils
+
+/**
+ * url的缓存key对应的文件名
+ */
+internal class UrlFileName private constructor(
+    /** 下载文件名 */
+    val fileName: String,
+    /** 临时文件名 */
+    val tempFileName: String
+) {
+    companion object {
+        private const val MAX_CACHE_SIZE = 256
+
+        /** 最近使用的key的文件名，避免重复计算md5和扩展名 */
+        private val sCache = object : LinkedHashMap<String, UrlFileName>(16, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, UrlFileName>?): Boolean {
+                return size > MAX_CACHE_SIZE
+            }
+        }
+
+        fun of(key: String): UrlFileName {
+            synchronized(sCache) {
+                sCache[key]?.let { return it }
+            }
+
+            val md5 = Utils.md5(key)
+            val ext = Utils.getExt(key)
+            val fileName = if (ext.isEmpty()) md5 else "${md5}.${ext.removePrefix(".")}"
+            val name = UrlFileName(fileName, md5 + IDownloadDirectory.EXT_TEMP)
+
+            synchronized(sCache) {
+                sCache[key] = name
+            }
+            return name
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.sd.lib.dldmgr.dispatcher
+
+import android.os.Handler
+import android.os.Looper
+import java.util.*
+
+/**
+ * 在主线程批量执行回调
+ *
+ * 第一个回调到达之后等待[interval]毫秒，期间到达的所有回调在同一个Runnable中执行，
+ * 大量任务同时结束时不会向主线程post大量消息
+ *
+ * @param interval 批量间隔(毫秒)，默认16毫秒，即一帧的时间
+ */
+class BatchedMainCallbackDispatcher @JvmOverloads constructor(
+    interval: Long = 16
+) : ICallbackDispatcher {
+
+    private val _interval = interval.coerceAtLeast(0)
+    private val _handler = Handler(Looper.getMainLooper())
+
+    private var _pending: MutableList<Runnable> = ArrayList()
+    private var _scheduled = false
+
+    private val _flushRunnable = Runnable {
+        val list = synchronized(this@BatchedMainCallbackDispatcher) {
+            val list = _pending
+            _pending = ArrayList()
+            _scheduled = false
+            list
+        }
+        for (item in list) {
+            item.run()
+        }
+    }
+
+    override fun dispatch(runnable: Runnable) {
+        synchronized(this@BatchedMainCallbackDispatcher) {
+            _pending.add(runnable)
+            if (_scheduled) return
+            _scheduled = true
+        }
+        _handler.postDelayed(_flushRunnable, _interval)
+    }
+}
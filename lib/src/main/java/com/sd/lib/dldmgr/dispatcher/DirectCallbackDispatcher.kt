@@ -0,0 +1,12 @@
+package com.sd.lib.dldmgr.dispatcher
+
+/**
+ * 在调用线程(一般是下载线程)直接执行回调，适合不需要更新界面的调用方
+ *
+ * 回调中不能执行耗时操作，否则会阻塞下载
+ */
+class DirectCallbackDispatcher : ICallbackDispatcher {
+    override fun dispatch(runnable: Runnable) {
+        runnable.run()
+    }
+}
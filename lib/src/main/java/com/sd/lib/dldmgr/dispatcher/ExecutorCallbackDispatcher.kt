@@ -0,0 +1,37 @@
+package com.sd.lib.dldmgr.dispatcher
+
+import java.util.*
+import java.util.concurrent.Executor
+
+/**
+ * 在指定的[Executor]执行回调
+ *
+ * 回调会按照分发的顺序依次提交，同一时间只有一个回调在执行，所以[Executor]可以是多线程的线程池
+ */
+class ExecutorCallbackDispatcher(
+    private val executor: Executor
+) : ICallbackDispatcher {
+
+    private val _queue: Queue<Runnable> = ArrayDeque()
+    private var _active: Runnable? = null
+
+    @Synchronized
+    override fun dispatch(runnable: Runnable) {
+        _queue.offer(Runnable {
+            try {
+                runnable.run()
+            } finally {
+                scheduleNext()
+            }
+        })
+        if (_active == null) {
+            scheduleNext()
+        }
+    }
+
+    @Synchronized
+    private fun scheduleNext() {
+        _active = _queue.poll()
+        _active?.let { executor.execute(it) }
+    }
+}
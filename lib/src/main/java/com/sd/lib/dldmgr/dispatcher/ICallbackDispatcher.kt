@@ -0,0 +1,11 @@
+package com.sd.lib.dldmgr.dispatcher
+
+/**
+ * 回调分发器，决定[com.sd.lib.dldmgr.IDownloadManager.Callback]在哪个线程执行
+ */
+interface ICallbackDispatcher {
+    /**
+     * 分发回调，同一个分发器分发的回调需要按照调用的顺序执行，否则同一个任务可能先收到结果再收到进度
+     */
+    fun dispatch(runnable: Runnable)
+}
@@ -0,0 +1,15 @@
+package com.sd.lib.dldmgr.dispatcher
+
+import android.os.Handler
+import android.os.Looper
+
+/**
+ * 在主线程执行回调，每个回调单独post到主线程
+ */
+class MainCallbackDispatcher : ICallbackDispatcher {
+    private val _handler = Handler(Looper.getMainLooper())
+
+    override fun dispatch(runnable: Runnable) {
+        _handler.post(runnable)
+    }
+}
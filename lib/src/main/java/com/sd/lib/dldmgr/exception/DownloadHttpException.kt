@@ -1,6 +1,18 @@
 package com.sd.lib.dldmgr.exception
 
 class DownloadHttpException : DownloadException {
+    /** 服务端返回的状态码，-1表示没有收到响应 */
+    val responseCode: Int
+
     @JvmOverloads
-    constructor(message: String? = "", cause: Throwable?) : super(message, cause)
-}
\ No newline at end of file
+    constructor(message: String? = "", cause: Throwable?) : super(message, cause) {
+        responseCode = -1
+    }
+
+    /**
+     * @param responseCode 服务端返回的错误状态码
+     */
+    constructor(responseCode: Int) : super("response code:${responseCode}") {
+        this.responseCode = responseCode
+    }
+}
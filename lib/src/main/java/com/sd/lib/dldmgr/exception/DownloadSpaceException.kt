@@ -0,0 +1,11 @@
+package com.sd.lib.dldmgr.exception
+
+/**
+ * 磁盘可用空间不足
+ */
+class DownloadSpaceException(
+    /** 需要的空间(字节) */
+    val required: Long,
+    /** 可用的空间(字节)，已经减去其他下载中的任务预留的空间 */
+    val available: Long
+) : DownloadException("insufficient space required:${required} available:${available}")
@@ -0,0 +1,12 @@
+package com.sd.lib.dldmgr.exception
+
+import com.sd.lib.dldmgr.DownloadError
+
+/**
+ * 下载文件校验失败
+ */
+class DownloadVerifyException(
+    /** [DownloadError.SizeMismatch]或者[DownloadError.ChecksumMismatch] */
+    val error: DownloadError,
+    message: String?
+) : DownloadException(message)
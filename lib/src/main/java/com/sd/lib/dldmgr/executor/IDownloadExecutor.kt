@@ -21,4 +21,13 @@ interface IDownloadExecutor {
      * @return true-任务取消
      */
     fun cancel(url: String?): Boolean
+
+    /**
+     * 修改[url]下载任务的优先级，优先级越高越先下载
+     *
+     * @return true-修改成功；false-任务不存在或者不支持修改优先级
+     */
+    fun setPriority(url: String?, priority: Int): Boolean {
+        return false
+    }
 }
\ No newline at end of file
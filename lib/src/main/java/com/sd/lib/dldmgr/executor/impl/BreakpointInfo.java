@@ -0,0 +1,211 @@
+package com.sd.lib.dldmgr.executor.impl;
+
+import com.sd.lib.dldmgr.cachekey.ICacheKeyStrategy;
+import com.sd.lib.dldmgr.directory.IDownloadDirectory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * 断点信息，和临时文件一起保存，用于断点下载时校验服务端文件是否发生变化
+ */
+final class BreakpointInfo
+{
+    private static final String KEY_URL = "url";
+    private static final String KEY_VALIDATOR = "validator";
+    private static final String KEY_TOTAL = "total";
+    private static final String KEY_COMMITTED = "committed";
+    /** 临时文件预先分配了空间或者分段写入，长度不代表已经写入的长度，必须有有效的committed才能继续下载 */
+    private static final String KEY_PREALLOCATED = "preallocated";
+
+    private final String mUrl;
+    /** 服务端文件的校验值，ETag或者Last-Modified */
+    private final String mValidator;
+    /** 文件总长度 */
+    private final long mTotal;
+    /** 临时文件从头开始已经写入的长度，小于0表示旧版本没有记录，临时文件的长度就是已经写入的长度 */
+    private final long mCommitted;
+
+    private BreakpointInfo(String url, String validator, long total, long committed)
+    {
+        mUrl = url;
+        mValidator = validator;
+        mTotal = total;
+        mCommitted = committed;
+    }
+
+    public String getValidator()
+    {
+        return mValidator;
+    }
+
+    /**
+     * 返回可以继续下载的位置，预先分配空间或者分段下载时临时文件的长度可能大于已经写入的长度
+     *
+     * @param length 临时文件的长度
+     */
+    public long getResumeLength(long length)
+    {
+        return mCommitted >= 0 ? Math.min(length, mCommitted) : length;
+    }
+
+    /**
+     * 临时文件当前的长度是否可以继续断点下载
+     *
+     * @param keyStrategy 缓存key策略，签名参数等不同的url缓存key相同时也可以继续下载，服务端文件是否变化由校验值判断
+     */
+    public boolean canResume(String url, ICacheKeyStrategy keyStrategy, long length)
+    {
+        if (!mUrl.equals(url) && !keyStrategy.getKey(mUrl).equals(keyStrategy.getKey(url)))
+            return false;
+        return mTotal <= 0 || length < mTotal;
+    }
+
+    /**
+     * 保存到临时文件对应的断点信息文件，先写入临时文件再重命名，进程被杀死时不会留下写了一半的断点信息
+     *
+     * @param committed 临时文件从头开始已经写入的长度
+     */
+    public void save(File tempFile, long committed)
+    {
+        final Properties properties = new Properties();
+        properties.setProperty(KEY_URL, mUrl);
+        properties.setProperty(KEY_VALIDATOR, mValidator);
+        properties.setProperty(KEY_TOTAL, String.valueOf(mTotal));
+        properties.setProperty(KEY_COMMITTED, String.valueOf(Math.max(0, committed)));
+        properties.setProperty(KEY_PREALLOCATED, String.valueOf(true));
+
+        final File file = getFile(tempFile);
+        final File writeFile = new File(file.getPath() + IDownloadDirectory.EXT_TEMP);
+        OutputStream output = null;
+        try
+        {
+            output = new FileOutputStream(writeFile);
+            properties.store(output, null);
+            output.close();
+            output = null;
+
+            if (!writeFile.renameTo(file))
+            {
+                file.delete();
+                if (!writeFile.renameTo(file))
+                    throw new IOException("rename " + writeFile + " to " + file + " failed");
+            }
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+            writeFile.delete();
+            delete(tempFile);
+        } finally
+        {
+            closeQuietly(output);
+        }
+    }
+
+    /**
+     * 根据服务端的响应创建断点信息
+     *
+     * @return null-服务端没有返回可用的校验值，无法安全的断点下载
+     */
+    public static BreakpointInfo create(String url, HttpRequest response, long total)
+    {
+        String validator = response.eTag();
+        if (validator == null || validator.isEmpty() || validator.startsWith("W/"))
+        {
+            // 弱校验值不能用于If-Range，使用Last-Modified
+            validator = response.header(HttpRequest.HEADER_LAST_MODIFIED);
+        }
+
+        if (validator == null || validator.isEmpty())
+            return null;
+
+        return new BreakpointInfo(url, validator, total, -1);
+    }
+
+    /**
+     * 读取临时文件对应的断点信息
+     *
+     * @return null-断点信息不存在或者读取失败
+     */
+    public static BreakpointInfo read(File tempFile)
+    {
+        final File file = getFile(tempFile);
+        if (!file.exists())
+            return null;
+
+        InputStream input = null;
+        try
+        {
+            input = new FileInputStream(file);
+            final Properties properties = new Properties();
+            properties.load(input);
+
+            final String url = properties.getProperty(KEY_URL);
+            final String validator = properties.getProperty(KEY_VALIDATOR);
+            final long total = Long.parseLong(properties.getProperty(KEY_TOTAL, "-1"));
+            if (url == null || validator == null || validator.isEmpty())
+                return null;
+
+            final long committed;
+            if (Boolean.parseBoolean(properties.getProperty(KEY_PREALLOCATED)))
+            {
+                // 临时文件的长度不可信，没有有效的committed不能继续下载
+                committed = Long.parseLong(properties.getProperty(KEY_COMMITTED));
+                if (committed < 0)
+                    return null;
+            } else
+            {
+                committed = Long.parseLong(properties.getProperty(KEY_COMMITTED, "-1"));
+            }
+
+            return new BreakpointInfo(url, validator, total, committed);
+        } catch (IOException | NumberFormatException e)
+        {
+            return null;
+        } finally
+        {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * 删除临时文件对应的断点信息
+     */
+    public static void delete(File tempFile)
+    {
+        final File file = getFile(tempFile);
+        if (file.exists())
+            file.delete();
+    }
+
+    /**
+     * 返回临时文件对应的断点信息文件
+     */
+    public static File getFile(File tempFile)
+    {
+        final String name = tempFile.getName();
+        final String prefix = name.endsWith(IDownloadDirectory.EXT_TEMP)
+                ? name.substring(0, name.length() - IDownloadDirectory.EXT_TEMP.length())
+                : name;
+        return new File(tempFile.getParentFile(), prefix + IDownloadDirectory.EXT_TEMP_INFO);
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable != null)
+        {
+            try
+            {
+                closeable.close();
+            } catch (Throwable ignored)
+            {
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.sd.lib.dldmgr.executor.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下载读写用的缓冲区池，所有下载线程共用，池中最多保留{@link #MAX_POOL_SIZE}个缓冲区
+ * <p>
+ * 使用堆缓冲区：可以直接从输入流读取到缓冲区的数组，不需要再包装一层通道和中间数组，计算校验值时也可以直接使用数组
+ */
+public final class ByteBufferPool
+{
+    /** 缓冲区大小，读取的数据会先合并到缓冲区，写满之后再写入文件 */
+    static final int BUFFER_SIZE = 64 * 1024;
+    /** 池中最多保留的缓冲区数量 */
+    static final int MAX_POOL_SIZE = 16;
+
+    private static final ArrayDeque<ByteBuffer> sPool = new ArrayDeque<>(MAX_POOL_SIZE);
+
+    private static final AtomicLong sHitCount = new AtomicLong();
+    private static final AtomicLong sMissCount = new AtomicLong();
+    private static final AtomicLong sDropCount = new AtomicLong();
+
+    private ByteBufferPool()
+    {
+    }
+
+    /**
+     * 获取一个缓冲区，池中没有空闲的缓冲区时新创建一个
+     */
+    static ByteBuffer obtain()
+    {
+        ByteBuffer buffer;
+        synchronized (sPool)
+        {
+            buffer = sPool.pollFirst();
+        }
+
+        if (buffer == null)
+        {
+            sMissCount.incrementAndGet();
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        } else
+        {
+            sHitCount.incrementAndGet();
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 回收缓冲区，池已经满了则丢弃
+     */
+    static void recycle(ByteBuffer buffer)
+    {
+        if (buffer == null || buffer.isDirect() || buffer.capacity() != BUFFER_SIZE)
+            return;
+
+        synchronized (sPool)
+        {
+            if (sPool.size() < MAX_POOL_SIZE)
+            {
+                sPool.offerFirst(buffer);
+                return;
+            }
+        }
+        sDropCount.incrementAndGet();
+    }
+
+    /**
+     * 从池中获取到空闲缓冲区的次数
+     */
+    public static long getHitCount()
+    {
+        return sHitCount.get();
+    }
+
+    /**
+     * 池中没有空闲缓冲区，新创建缓冲区的次数
+     */
+    public static long getMissCount()
+    {
+        return sMissCount.get();
+    }
+
+    /**
+     * 回收时池已经满了，丢弃缓冲区的次数
+     */
+    public static long getDropCount()
+    {
+        return sDropCount.get();
+    }
+
+    /**
+     * 池中空闲的缓冲区数量
+     */
+    public static int getPooledCount()
+    {
+        synchronized (sPool)
+        {
+            return sPool.size();
+        }
+    }
+}
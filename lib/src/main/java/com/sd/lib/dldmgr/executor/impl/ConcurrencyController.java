@@ -0,0 +1,137 @@
+package com.sd.lib.dldmgr.executor.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 自适应并发控制器，按照固定的时间窗口统计所有任务的总速率和任务开始下载的延迟，
+ * 加性增加，乘性减少(AIMD)同时下载的任务数量
+ * <p>
+ * 有任务在等待时才调整：增加并发之后总速率有提升则继续增加；总速率明显下降或者延迟明显变大说明网络拥塞，按比例减少
+ */
+final class ConcurrencyController
+{
+    /** 统计窗口(纳秒) */
+    private static final long WINDOW_NANOS = 2000L * 1000000;
+    /** 总速率提升超过这个比例，才认为增加并发有效 */
+    private static final double GAIN_THRESHOLD = 0.05;
+    /** 总速率下降超过这个比例，认为发生拥塞 */
+    private static final double LOSS_THRESHOLD = 0.1;
+    /** 延迟超过基准延迟的倍数，认为发生拥塞 */
+    private static final double LATENCY_FACTOR = 2;
+    /** 每个窗口基准延迟最多增长的比例，网络切换之后基准延迟可以慢慢恢复 */
+    private static final double LATENCY_BASELINE_GROWTH = 1.1;
+    /** 乘性减少的比例 */
+    private static final double DECREASE_FACTOR = 0.75;
+
+    private final int mMinLimit;
+    private final int mMaxLimit;
+
+    /** 当前窗口下载的字节数 */
+    private final AtomicLong mBytes = new AtomicLong();
+    private volatile long mWindowStart = System.nanoTime();
+
+    private int mLimit;
+    private long mLatencySum;
+    private int mLatencyCount;
+    /** 基准延迟(毫秒)，小于0表示还没有统计 */
+    private long mBaselineLatency = -1;
+    /** 上一个窗口的总速率(字节/秒)，小于0表示没有可以比较的速率 */
+    private double mLastThroughput = -1;
+    /** 上一个窗口是否增加了并发 */
+    private boolean mLastIncreased;
+
+    /**
+     * @param minLimit 最少同时下载的任务数量
+     * @param maxLimit 最多同时下载的任务数量
+     * @param limit    初始的任务数量
+     */
+    public ConcurrencyController(int minLimit, int maxLimit, int limit)
+    {
+        mMinLimit = Math.max(1, minLimit);
+        mMaxLimit = Math.max(mMinLimit, maxLimit);
+        mLimit = Math.min(mMaxLimit, Math.max(mMinLimit, limit));
+    }
+
+    public synchronized int getLimit()
+    {
+        return mLimit;
+    }
+
+    /**
+     * 记录下载的字节数
+     *
+     * @return true-当前窗口已经结束，需要调用{@link #evaluate(boolean, int)}
+     */
+    public boolean recordTransfer(long bytes)
+    {
+        mBytes.addAndGet(bytes);
+        return System.nanoTime() - mWindowStart >= WINDOW_NANOS;
+    }
+
+    /**
+     * 记录任务开始执行到第一次读取到数据的延迟
+     */
+    public synchronized void recordLatency(long millis)
+    {
+        mLatencySum += millis;
+        mLatencyCount++;
+    }
+
+    /**
+     * 窗口结束之后计算新的任务数量，窗口还没有结束则返回当前的任务数量
+     *
+     * @param hasPending 是否有等待中的任务
+     * @param running    正在下载的任务数量
+     */
+    public synchronized int evaluate(boolean hasPending, int running)
+    {
+        final long now = System.nanoTime();
+        final long elapsed = now - mWindowStart;
+        if (elapsed < WINDOW_NANOS)
+            return mLimit;
+
+        mWindowStart = now;
+        final long bytes = mBytes.getAndSet(0);
+        final long latency = mLatencyCount > 0 ? mLatencySum / mLatencyCount : -1;
+        mLatencySum = 0;
+        mLatencyCount = 0;
+
+        // 下载中的任务没有达到上限时，总速率不能反映当前任务数量的效果
+        if (!hasPending || running < mLimit)
+        {
+            mLastThroughput = -1;
+            mLastIncreased = false;
+            return mLimit;
+        }
+
+        boolean congested = false;
+        if (latency >= 0)
+        {
+            if (mBaselineLatency < 0)
+            {
+                mBaselineLatency = latency;
+            } else
+            {
+                congested = latency > mBaselineLatency * LATENCY_FACTOR;
+                mBaselineLatency = Math.min(latency, (long) Math.ceil(mBaselineLatency * LATENCY_BASELINE_GROWTH));
+            }
+        }
+
+        final double throughput = bytes * 1e9 / elapsed;
+        if (congested || (mLastThroughput > 0 && throughput < mLastThroughput * (1 - LOSS_THRESHOLD)))
+        {
+            mLimit = Math.max(mMinLimit, Math.min(mLimit - 1, (int) (mLimit * DECREASE_FACTOR)));
+            mLastIncreased = false;
+        } else if (mLastIncreased && throughput < mLastThroughput * (1 + GAIN_THRESHOLD))
+        {
+            // 上次增加并发没有带来明显的提升，这个窗口保持不变
+            mLastIncreased = false;
+        } else if (mLimit < mMaxLimit)
+        {
+            mLimit++;
+            mLastIncreased = true;
+        }
+        mLastThroughput = throughput;
+        return mLimit;
+    }
+}
@@ -0,0 +1,142 @@
+package com.sd.lib.dldmgr.executor.impl
+
+import com.sd.lib.dldmgr.DownloadManagerConfig
+import com.sd.lib.dldmgr.DownloadRequest
+import com.sd.lib.dldmgr.IDownloadUpdater
+import com.sd.lib.dldmgr.executor.IDownloadExecutor
+import kotlinx.coroutines.*
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.SynchronousQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * 基于协程的下载器
+ *
+ * 排队中的任务只是挂起的协程，不占用线程；同时下载的任务数量由信号量限制，在[Dispatchers.IO]上执行，分段任务在单独的线程池执行。
+ * 取消任务时会立即断开连接，阻塞中的读取会马上结束
+ */
+class CoroutineDownloadExecutor : IDownloadExecutor {
+    /** 是否需要断点下载 */
+    private val _preferBreakpoint: Boolean
+
+    /** 单个任务的最大分段数量，小于等于1表示不分段 */
+    private val _maxSegmentCount: Int
+
+    private val _semaphore: Semaphore
+    private val _scope: CoroutineScope
+    private val _mapTask = ConcurrentHashMap<String, Task>()
+
+    /** 分段任务由下载任务发起并阻塞等待，不能使用线程数量有上限的[Dispatchers.IO]，否则可能互相等待 */
+    private val _segmentExecutor = ThreadPoolExecutor(
+        0, Int.MAX_VALUE,
+        10L, TimeUnit.SECONDS,
+        SynchronousQueue<Runnable>()
+    )
+
+    /**
+     * @param maxPoolSize      同时下载的最大任务数量
+     * @param preferBreakpoint 是否需要断点下载
+     * @param maxSegmentCount  单个任务的最大分段数量，大于1时如果服务端支持Range请求，则把文件分成多段并行下载
+     * @param parentJob        父Job，父Job取消之后所有的下载任务都会被取消
+     */
+    @JvmOverloads
+    constructor(
+        maxPoolSize: Int = 3,
+        preferBreakpoint: Boolean = true,
+        maxSegmentCount: Int = 1,
+        parentJob: Job? = null
+    ) {
+        require(maxPoolSize > 0) { "maxPoolSize must be > 0" }
+        _preferBreakpoint = preferBreakpoint
+        _maxSegmentCount = maxSegmentCount
+        _semaphore = Semaphore(maxPoolSize)
+        _scope = CoroutineScope(SupervisorJob(parentJob) + Dispatchers.IO)
+    }
+
+    override fun submit(request: DownloadRequest, file: File, updater: IDownloadUpdater): Boolean {
+        val url = request.url
+        if (url == null || url.isEmpty()) return false
+
+        val preferBreakpoint = request.preferBreakpoint ?: _preferBreakpoint
+        val downloader = HttpDownloader(
+            request, file, updater,
+            preferBreakpoint, _maxSegmentCount, _segmentExecutor
+        )
+
+        val submitTime = System.currentTimeMillis()
+        val job = _scope.launch(start = CoroutineStart.LAZY) {
+            _semaphore.withPermit {
+                DownloadManagerConfig.get().metrics.recordQueueWait(System.currentTimeMillis() - submitTime)
+                download(downloader, updater)
+            }
+        }
+
+        val task = Task(job, updater)
+        _mapTask[url] = task
+        job.invokeOnCompletion { cause ->
+            _mapTask.remove(url, task)
+            if (cause is CancellationException) {
+                // 父Job取消等情况，任务没有通过cancel()取消
+                updater.notifyCancel()
+            }
+        }
+        job.start()
+        return true
+    }
+
+    override fun cancel(url: String?): Boolean {
+        if (url == null || url.isEmpty()) return false
+
+        val task = _mapTask.remove(url) ?: return false
+        task.updater.notifyCancel()
+        task.job.cancel()
+        return true
+    }
+
+    /**
+     * 取消所有下载任务，取消之后不能再提交任务
+     */
+    fun shutdown() {
+        _scope.cancel()
+        _segmentExecutor.shutdown()
+    }
+
+    private suspend fun download(downloader: HttpDownloader, updater: IDownloadUpdater) = coroutineScope {
+        // 协程被取消时断开连接，线程中断不能让阻塞中的socket读取结束
+        val stopper = launch(start = CoroutineStart.UNDISPATCHED) {
+            try {
+                awaitCancellation()
+            } finally {
+                downloader.stop()
+            }
+        }
+
+        try {
+            runInterruptible {
+                downloader.download()
+            }
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            // 断开连接导致的异常，按照取消处理
+            ensureActive()
+            if (e is RuntimeException && e !is HttpRequest.HttpRequestException) {
+                // 作用域没有异常处理器，抛出会导致崩溃，任务也不会结束
+                updater.notifyError(e)
+            } else {
+                HttpDownloader.notifyError(updater, e)
+            }
+        } finally {
+            stopper.cancel()
+        }
+    }
+
+    private class Task(
+        val job: Job,
+        val updater: IDownloadUpdater
+    )
+}
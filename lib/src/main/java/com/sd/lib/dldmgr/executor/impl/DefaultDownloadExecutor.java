@@ -2,26 +2,16 @@ package com.sd.lib.dldmgr.executor.impl;
 
 import android.text.TextUtils;
 
+import com.sd.lib.dldmgr.DownloadManagerConfig;
 import com.sd.lib.dldmgr.DownloadRequest;
 import com.sd.lib.dldmgr.IDownloadUpdater;
-import com.sd.lib.dldmgr.exception.DownloadHttpException;
 import com.sd.lib.dldmgr.executor.IDownloadExecutor;
+import com.sd.lib.dldmgr.metrics.DownloadMetrics;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.RandomAccessFile;
-import java.net.HttpURLConnection;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -30,274 +20,236 @@ import java.util.concurrent.TimeUnit;
  */
 public class DefaultDownloadExecutor implements IDownloadExecutor
 {
-    private ExecutorService mExecutor;
-    private final Map<String, TaskInfo> mMapTask = new ConcurrentHashMap<>();
+    private final TaskScheduler mScheduler;
+    private ExecutorService mSegmentExecutor;
 
-    /** 同时下载的最大任务数量 */
-    private final int mMaxPoolSize;
     /** 是否需要断点下载 */
     private final boolean mPreferBreakpoint;
+    /** 单个任务的最大分段数量，小于等于1表示不分段 */
+    private final int mMaxSegmentCount;
 
     public DefaultDownloadExecutor()
     {
-        this(3, false);
+        this(3, true);
     }
 
     public DefaultDownloadExecutor(int maxPoolSize, boolean preferBreakpoint)
+    {
+        this(maxPoolSize, preferBreakpoint, 1);
+    }
+
+    public DefaultDownloadExecutor(int maxPoolSize, boolean preferBreakpoint, int maxSegmentCount)
+    {
+        this(maxPoolSize, preferBreakpoint, maxSegmentCount, null);
+    }
+
+    /**
+     * @param maxPoolSize      同时下载的最大任务数量
+     * @param preferBreakpoint 是否需要断点下载
+     * @param maxSegmentCount  单个任务的最大分段数量，大于1时如果服务端支持Range请求，则把文件分成多段并行下载
+     * @param schedulePolicy   任务调度策略，null-使用默认策略；开启自适应并发时maxPoolSize为初始的任务数量
+     */
+    public DefaultDownloadExecutor(int maxPoolSize, boolean preferBreakpoint, int maxSegmentCount, SchedulePolicy schedulePolicy)
     {
         if (maxPoolSize <= 0)
             throw new IllegalArgumentException("maxPoolSize must be > 0");
-        mMaxPoolSize = maxPoolSize;
         mPreferBreakpoint = preferBreakpoint;
+        mMaxSegmentCount = maxSegmentCount;
+
+        if (schedulePolicy == null)
+            schedulePolicy = new SchedulePolicy.Builder().build();
+        mScheduler = new TaskScheduler(maxPoolSize, schedulePolicy);
     }
 
-    private ExecutorService getExecutor()
+    private ExecutorService getSegmentExecutor()
     {
-        if (mExecutor != null)
-            return mExecutor;
+        if (mSegmentExecutor != null)
+            return mSegmentExecutor;
 
         synchronized (this)
         {
-            if (mExecutor == null)
+            if (mSegmentExecutor == null)
             {
-                final ThreadPoolExecutor executor = new ThreadPoolExecutor(mMaxPoolSize, mMaxPoolSize,
+                // 分段任务由下载任务发起并等待，不能和下载任务共用线程池，否则可能互相等待
+                mSegmentExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
                         10L, TimeUnit.SECONDS,
-                        new LinkedBlockingQueue<Runnable>());
-                executor.allowCoreThreadTimeOut(true);
-                mExecutor = executor;
+                        new SynchronousQueue<Runnable>());
             }
         }
-        return mExecutor;
-    }
-
-    private static HttpRequest newHttpRequest(DownloadRequest downloadRequest)
-    {
-        final HttpRequest httpRequest = HttpRequest.get(downloadRequest.getUrl());
-        return httpRequest
-                .connectTimeout(15 * 1000)
-                .readTimeout(15 * 1000)
-                .trustAllHosts()
-                .trustAllCerts();
+        return mSegmentExecutor;
     }
 
     @Override
-    public boolean submit(final DownloadRequest request, final File file, final IDownloadUpdater updater)
+    public boolean submit(DownloadRequest request, File file, IDownloadUpdater updater)
     {
         final Boolean requestPreferBreakpoint = request.getPreferBreakpoint();
         final boolean preferBreakpoint = requestPreferBreakpoint != null ? requestPreferBreakpoint : mPreferBreakpoint;
 
-        final String url = request.getUrl();
-        final Runnable runnable = new Runnable()
-        {
-            @Override
-            public void run()
-            {
-                final long length = file.length();
-                final boolean breakpoint = length > 0;
-
-                HttpRequest httpRequest = newHttpRequest(request);
-
-                if (preferBreakpoint && breakpoint)
-                {
-                    httpRequest.header("Range", "bytes=" + length + "-");
-                }
-
-                try
-                {
-                    int code = httpRequest.code();
-                    if (preferBreakpoint && breakpoint)
-                    {
-                        if (code == HttpURLConnection.HTTP_PARTIAL)
-                        {
-                            downloadBreakpoint(httpRequest, file, updater);
-                            return;
-                        } else
-                        {
-                            // 不支持断点下载，尝试正常下载
-                            httpRequest = newHttpRequest(request);
-                            code = httpRequest.code();
-                        }
-                    }
-
-                    if (code == HttpURLConnection.HTTP_OK)
-                    {
-                        downloadNormal(httpRequest, file, updater);
-                    } else
-                    {
-                        updater.notifyError(new DownloadHttpException(null));
-                    }
-                } catch (Exception e)
-                {
-                    Throwable throwable = e;
-                    if (e instanceof RuntimeException)
-                    {
-                        if (e instanceof HttpRequest.HttpRequestException)
-                        {
-                            final HttpRequest.HttpRequestException requestException = (HttpRequest.HttpRequestException) e;
-                            final Throwable cause = requestException.getCause();
-                            if (cause != null)
-                                throwable = cause;
-                        } else
-                        {
-                            throw (RuntimeException) e;
-                        }
-                    }
-
-                    updater.notifyError(new DownloadHttpException(throwable));
-                } finally
-                {
-                    mMapTask.remove(url);
-                }
-            }
-        };
+        mScheduler.submit(new DownloadTask(request, file, updater, preferBreakpoint));
+        return true;
+    }
+
+    @Override
+    public boolean cancel(String url)
+    {
+        if (TextUtils.isEmpty(url))
+            return false;
 
-        final Future<?> future = getExecutor().submit(runnable);
-        final TaskInfo taskInfo = new TaskInfo(future, updater);
-        mMapTask.put(url, taskInfo);
+        final TaskScheduler.Task task = mScheduler.cancel(url);
+        if (task == null)
+            return false;
 
+        ((DownloadTask) task).mUpdater.notifyCancel();
+        task.stop();
         return true;
     }
 
-    private void downloadNormal(HttpRequest request, File file, final IDownloadUpdater updater) throws IOException
+    @Override
+    public boolean setPriority(String url, int priority)
     {
-        InputStream input = null;
-        OutputStream output = null;
-
-        try
-        {
-            input = request.stream();
-            output = new BufferedOutputStream(new FileOutputStream(file));
+        if (TextUtils.isEmpty(url))
+            return false;
 
-            final long total = request.contentLength();
-            final OutputStream finalOut = output;
-            read(input, new ReadCallback()
-            {
-                @Override
-                public void write(byte[] buffer, int offset, int length) throws IOException
-                {
-                    finalOut.write(buffer, offset, length);
-                }
-
-                @Override
-                public void count(int count)
-                {
-                    updater.notifyProgress(total, count);
-                }
-            });
-            output.flush();
-            updater.notifySuccess();
-        } finally
-        {
-            closeQuietly(input);
-            closeQuietly(output);
-        }
+        return mScheduler.setPriority(url, priority);
     }
 
-    private void downloadBreakpoint(HttpRequest request, File file, final IDownloadUpdater updater) throws IOException
+    private final class DownloadTask extends TaskScheduler.Task
     {
-        final long length = file.length();
-        if (length <= 0)
-            throw new RuntimeException("file length must > 0");
+        private final DownloadRequest mRequest;
+        private final File mFile;
+        private final boolean mPreferBreakpoint;
+        private final IDownloadUpdater mUpdater;
+        /** 当前执行使用的下载器，停止之后不能再使用，被抢占后重新执行时创建新的下载器 */
+        private volatile HttpDownloader mDownloader;
+        private final DownloadMetrics mMetrics;
+        private final long mSubmitTime;
+        private boolean mStarted;
 
-        InputStream input = null;
-        RandomAccessFile randomAccessFile = null;
+        /** 自适应并发时统计下载量和延迟，null-不需要统计 */
+        private final ConcurrencyUpdater mConcurrencyUpdater;
 
-        try
+        public DownloadTask(DownloadRequest request, File file, IDownloadUpdater updater, boolean preferBreakpoint)
         {
-            input = request.stream();
-            randomAccessFile = new RandomAccessFile(file, "rwd");
-            randomAccessFile.seek(length);
+            super(request.getUrl(), request.getPriority());
+            mRequest = request;
+            mFile = file;
+            mPreferBreakpoint = preferBreakpoint;
+            mUpdater = updater;
+            mConcurrencyUpdater = mScheduler.isAdaptive() ? new ConcurrencyUpdater(updater) : null;
+            mMetrics = DownloadManagerConfig.get().getMetrics();
+            mSubmitTime = System.currentTimeMillis();
+        }
 
-            final long total = request.contentLength() + length;
-            final RandomAccessFile finalFile = randomAccessFile;
-            read(input, new ReadCallback()
-            {
-                @Override
-                public void write(byte[] buffer, int offset, int length) throws IOException
-                {
-                    finalFile.write(buffer, offset, length);
-                }
-
-                @Override
-                public void count(int count)
-                {
-                    updater.notifyProgress(total, count + length);
-                }
-            });
-            updater.notifySuccess();
-        } finally
+        @Override
+        protected boolean execute()
         {
-            closeQuietly(input);
-            closeQuietly(randomAccessFile);
-        }
-    }
+            // 被抢占后重新调度不重复记录
+            if (!mStarted)
+            {
+                mStarted = true;
+                mMetrics.recordQueueWait(System.currentTimeMillis() - mSubmitTime);
+            }
 
-    @Override
-    public boolean cancel(String url)
-    {
-        if (TextUtils.isEmpty(url))
-            return false;
+            if (mConcurrencyUpdater != null)
+                mConcurrencyUpdater.start();
 
-        final TaskInfo taskInfo = mMapTask.remove(url);
-        if (taskInfo == null)
-            return false;
+            final IDownloadUpdater updater = mConcurrencyUpdater != null ? mConcurrencyUpdater : mUpdater;
+            final HttpDownloader downloader = new HttpDownloader(mRequest, mFile, updater, mPreferBreakpoint, mMaxSegmentCount, getSegmentExecutor());
+            if (mConcurrencyUpdater != null)
+                downloader.setFirstReadListener(mConcurrencyUpdater);
+            mDownloader = downloader;
+            // 创建下载器之前已经被抢占，onStop()停止的是上一次的下载器
+            if (isPreempted())
+                return false;
 
-        if (taskInfo.mFuture.isDone())
-            return false;
+            try
+            {
+                downloader.download();
+            } catch (Exception e)
+            {
+                // 任务被抢占，保留临时文件等待重新调度
+                if (isPreempted())
+                    return false;
 
-        taskInfo.mUpdater.notifyCancel();
-        taskInfo.mFuture.cancel(true);
-        return true;
+                HttpDownloader.notifyError(mUpdater, e);
+            }
+            return true;
+        }
+
+        @Override
+        protected void onStop()
+        {
+            final HttpDownloader downloader = mDownloader;
+            if (downloader != null)
+                downloader.stop();
+        }
     }
 
-    private static final class TaskInfo
+    /**
+     * 统计下载进度的增量和第一次读取到数据的延迟，提供给自适应并发控制
+     */
+    private final class ConcurrencyUpdater implements IDownloadUpdater, HttpDownloader.FirstReadListener
     {
-        private final Future<?> mFuture;
         private final IDownloadUpdater mUpdater;
+        /** 上一次通知的下载量，小于0表示还没有通知过，第一次通知的下载量可能包含断点下载之前的部分，不计算在内 */
+        private final AtomicLong mLastCount = new AtomicLong(-1);
+        private volatile long mStartTime;
 
-        public TaskInfo(Future<?> future, IDownloadUpdater updater)
+        public ConcurrencyUpdater(IDownloadUpdater updater)
         {
-            if (future == null || updater == null)
-                throw new IllegalArgumentException();
-
-            mFuture = future;
             mUpdater = updater;
         }
-    }
 
-    private static void read(InputStream in, ReadCallback callback) throws IOException
-    {
-        if (!(in instanceof BufferedInputStream))
-            in = new BufferedInputStream(in);
+        /**
+         * 任务开始执行，被抢占之后重新执行时也会调用
+         */
+        public void start()
+        {
+            mStartTime = System.currentTimeMillis();
+            mLastCount.set(-1);
+        }
 
-        int count = 0;
-        int length = 0;
-        final byte[] buffer = new byte[10 * 1024];
-        while ((length = in.read(buffer)) != -1)
+        @Override
+        public void onFirstRead()
         {
-            callback.write(buffer, 0, length);
-            count += length;
-            callback.count(count);
+            // 每次执行创建新的下载器，每次执行只会回调一次
+            mScheduler.recordLatency(System.currentTimeMillis() - mStartTime);
         }
-    }
 
-    private static void closeQuietly(Closeable closeable)
-    {
-        if (closeable != null)
+        @Override
+        public void notifyProgress(long total, long current)
         {
-            try
+            // 分段下载时多个线程同时通知，只统计增加的部分
+            long last;
+            do
             {
-                closeable.close();
-            } catch (Throwable ignored)
-            {
-            }
+                last = mLastCount.get();
+                if (current <= last)
+                    break;
+            } while (!mLastCount.compareAndSet(last, current));
+
+            if (last >= 0 && current > last)
+                mScheduler.recordTransfer(current - last);
+
+            mUpdater.notifyProgress(total, current);
         }
-    }
 
-    private interface ReadCallback
-    {
-        void write(byte[] buffer, int offset, int length) throws IOException;
+        @Override
+        public void notifySuccess()
+        {
+            mUpdater.notifySuccess();
+        }
 
-        void count(int count);
+        @Override
+        public void notifyError(Exception e)
+        {
+            mUpdater.notifyError(e);
+        }
+
+        @Override
+        public void notifyCancel()
+        {
+            mUpdater.notifyCancel();
+        }
     }
 }
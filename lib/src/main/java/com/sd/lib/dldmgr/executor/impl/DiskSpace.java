@@ -0,0 +1,101 @@
+package com.sd.lib.dldmgr.executor.impl;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.File;
+import java.io.FileDescriptor;
+
+/**
+ * 磁盘空间检查，记录所有下载中的任务还需要写入的字节数，避免多个任务同时通过检查之后一起把空间写满
+ */
+final class DiskSpace
+{
+    /** 所有任务预留的字节数 */
+    private static long sReserved;
+
+    private DiskSpace()
+    {
+    }
+
+    /**
+     * 预留[bytes]字节的空间
+     *
+     * @return null-可用空间不足；不为null-预留成功，下载结束之后需要释放
+     */
+    static synchronized Reservation reserve(File file, long bytes)
+    {
+        if (bytes <= 0)
+            return new Reservation(0);
+
+        if (getAvailable(file) < bytes)
+            return null;
+
+        sReserved += bytes;
+        return new Reservation(bytes);
+    }
+
+    /**
+     * 返回[file]所在目录的可用空间，已经减去其他任务预留的空间
+     */
+    static synchronized long getAvailable(File file)
+    {
+        final File dir = file.getAbsoluteFile().getParentFile();
+        final long usable = dir == null ? 0 : dir.getUsableSpace();
+        return usable - sReserved;
+    }
+
+    private static synchronized void release(long bytes)
+    {
+        sReserved -= bytes;
+    }
+
+    /**
+     * 给文件的[offset, offset + length)预先分配磁盘空间，减少碎片，分配之后文件长度至少为offset + length
+     *
+     * @return true-分配成功；false-系统版本或者文件系统不支持
+     */
+    static boolean preallocate(FileDescriptor fd, long offset, long length)
+    {
+        if (length <= 0 || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return false;
+
+        try
+        {
+            Os.posix_fallocate(fd, offset, length);
+            return true;
+        } catch (ErrnoException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * 预留的空间
+     */
+    static final class Reservation
+    {
+        private long mBytes;
+
+        private Reservation(long bytes)
+        {
+            mBytes = bytes;
+        }
+
+        /**
+         * 释放预留的空间，文件已经预先分配空间或者下载结束之后调用，可以重复调用
+         */
+        void release()
+        {
+            final long bytes;
+            synchronized (this)
+            {
+                bytes = mBytes;
+                mBytes = 0;
+            }
+            if (bytes > 0)
+                DiskSpace.release(bytes);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.sd.lib.dldmgr.executor.impl;
+
+import com.sd.lib.dldmgr.metrics.DownloadMetrics;
+
+import java.io.IOException;
+
+/**
+ * 记录单个任务的连接耗时和传输速率
+ */
+final class DownloadMeter
+{
+    private final DownloadMetrics mMetrics;
+    private final String mHost;
+
+    public DownloadMeter(DownloadMetrics metrics, String host)
+    {
+        mMetrics = metrics;
+        mHost = host;
+    }
+
+    /**
+     * 建立连接并返回响应码，分别记录建立连接和收到响应头的耗时
+     */
+    public int connect(HttpRequest request)
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            request.getConnection().connect();
+        } catch (IOException e)
+        {
+            throw new HttpRequest.HttpRequestException(e);
+        }
+        final long connected = System.nanoTime();
+
+        final int code = request.code();
+        final long responded = System.nanoTime();
+
+        mMetrics.recordConnect(mHost, toMillis(connected - start));
+        mMetrics.recordFirstByte(mHost, toMillis(responded - start));
+        return code;
+    }
+
+    /**
+     * 记录一次连接的传输量和传输时长
+     */
+    public void recordTransfer(long bytes, long nanos)
+    {
+        mMetrics.recordTransfer(mHost, bytes, nanos);
+    }
+
+    private static long toMillis(long nanos)
+    {
+        return nanos / 1000000;
+    }
+}
@@ -0,0 +1,151 @@
+package com.sd.lib.dldmgr.executor.impl;
+
+import com.sd.lib.dldmgr.ChecksumType;
+import com.sd.lib.dldmgr.DownloadError;
+import com.sd.lib.dldmgr.DownloadRequest;
+import com.sd.lib.dldmgr.exception.DownloadVerifyException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 下载文件校验，校验值在下载过程中边写入边计算，不需要下载完成之后重新读取整个文件
+ */
+final class DownloadVerifier
+{
+    private final DownloadRequest mRequest;
+    private final MessageDigest mDigest;
+
+    private DownloadVerifier(DownloadRequest request, MessageDigest digest)
+    {
+        mRequest = request;
+        mDigest = digest;
+    }
+
+    /**
+     * 创建校验对象
+     *
+     * @return null-请求不需要校验
+     */
+    public static DownloadVerifier create(DownloadRequest request)
+    {
+        final ChecksumType type = request.getChecksumType();
+        if (type == null && request.getExpectedSize() < 0)
+            return null;
+
+        MessageDigest digest = null;
+        if (type != null)
+        {
+            try
+            {
+                digest = MessageDigest.getInstance(type.getAlgorithm());
+            } catch (NoSuchAlgorithmException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+        return new DownloadVerifier(request, digest);
+    }
+
+    /**
+     * 返回下载过程中需要更新的摘要对象，null-不需要计算校验值
+     */
+    public MessageDigest getDigest()
+    {
+        return mDigest;
+    }
+
+    /**
+     * 重新开始计算，从头下载之前调用
+     */
+    public void reset()
+    {
+        if (mDigest != null)
+            mDigest.reset();
+    }
+
+    /**
+     * 读取文件中已经下载的[0, length)部分更新摘要，断点下载和分段下载时调用
+     */
+    public void update(File file, long length) throws IOException
+    {
+        if (mDigest == null || length <= 0)
+            return;
+
+        final FileInputStream input = new FileInputStream(file);
+        final ByteBuffer buffer = ByteBufferPool.obtain();
+        try
+        {
+            final FileChannel channel = input.getChannel();
+            long position = 0;
+            while (position < length)
+            {
+                buffer.clear();
+                final long remaining = length - position;
+                if (remaining < buffer.capacity())
+                    buffer.limit((int) remaining);
+
+                final int read = channel.read(buffer, position);
+                if (read < 0)
+                    throw new IOException("file length less than " + length);
+
+                position += read;
+                buffer.flip();
+                mDigest.update(buffer);
+            }
+        } finally
+        {
+            ByteBufferPool.recycle(buffer);
+            try
+            {
+                input.close();
+            } catch (IOException ignored)
+            {
+            }
+        }
+    }
+
+    /**
+     * 校验下载完成的文件
+     *
+     * @return null-校验通过；不为null-校验失败的原因
+     */
+    public DownloadVerifyException verify(File file)
+    {
+        final long expectedSize = mRequest.getExpectedSize();
+        if (expectedSize >= 0)
+        {
+            final long length = file.length();
+            if (length != expectedSize)
+                return new DownloadVerifyException(DownloadError.SizeMismatch,
+                        "expected size:" + expectedSize + " actual:" + length);
+        }
+
+        if (mDigest != null)
+        {
+            final String checksum = toHex(mDigest.digest());
+            if (!checksum.equalsIgnoreCase(mRequest.getChecksum()))
+                return new DownloadVerifyException(DownloadError.ChecksumMismatch,
+                        "expected " + mRequest.getChecksumType() + ":" + mRequest.getChecksum() + " actual:" + checksum);
+        }
+        return null;
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        final char[] digits = "0123456789abcdef".toCharArray();
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            final int value = bytes[i] & 0xFF;
+            chars[i * 2] = digits[value >>> 4];
+            chars[i * 2 + 1] = digits[value & 0x0F];
+        }
+        return new String(chars);
+    }
+}
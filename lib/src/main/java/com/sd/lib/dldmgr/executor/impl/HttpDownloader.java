@@ -0,0 +1,1042 @@
+package com.sd.lib.dldmgr.executor.impl;
+
+import com.sd.lib.dldmgr.BandwidthLimiter;
+import com.sd.lib.dldmgr.DownloadManagerConfig;
+import com.sd.lib.dldmgr.DownloadRequest;
+import com.sd.lib.dldmgr.IDownloadUpdater;
+import com.sd.lib.dldmgr.RetryPolicy;
+import com.sd.lib.dldmgr.exception.DownloadHttpException;
+import com.sd.lib.dldmgr.exception.DownloadSpaceException;
+import com.sd.lib.dldmgr.exception.DownloadVerifyException;
+import com.sd.lib.dldmgr.metrics.DownloadMetrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 单个任务的http下载过程，不关心任务怎么调度，由下载执行器在自己的线程中调用{@link #download()}
+ */
+final class HttpDownloader
+{
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    /** 分段下载时每一段的最小长度 */
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    /** 保存已经写入长度的最小间隔(毫秒) */
+    private static final long COMMIT_INTERVAL = 1000;
+
+    private final DownloadRequest mRequest;
+    private final File mFile;
+    private final IDownloadUpdater mUpdater;
+    private final boolean mPreferBreakpoint;
+    private final int mMaxSegmentCount;
+    private final Executor mSegmentExecutor;
+    private final BandwidthLimiter[] mLimiters;
+    private final DownloadMeter mMeter;
+    /** 下载文件校验，null-不需要校验 */
+    private final DownloadVerifier mVerifier;
+    private final RetryPolicy mRetryPolicy;
+
+    private volatile HttpRequest mHttpRequest;
+    private volatile List<Segment> mListSegment = Collections.emptyList();
+    private volatile boolean mStopped;
+
+    /** 第一次读取到数据的监听，null-不监听 */
+    private volatile FirstReadListener mFirstReadListener;
+    private final AtomicBoolean mFirstRead = new AtomicBoolean();
+
+    /**
+     * @param maxSegmentCount 最大分段数量，小于等于1表示不分段
+     * @param segmentExecutor 执行分段下载的线程池，分段由当前任务发起并等待，不能和下载任务共用有界的线程池，否则可能互相等待
+     */
+    public HttpDownloader(DownloadRequest request, File file, IDownloadUpdater updater,
+                          boolean preferBreakpoint, int maxSegmentCount, Executor segmentExecutor)
+    {
+        mRequest = request;
+        mFile = file;
+        mUpdater = updater;
+        mPreferBreakpoint = preferBreakpoint;
+        mMaxSegmentCount = maxSegmentCount;
+        mSegmentExecutor = segmentExecutor;
+        mLimiters = getBandwidthLimiters(request);
+
+        final DownloadMetrics metrics = DownloadManagerConfig.get().getMetrics();
+        mMeter = new DownloadMeter(metrics, DownloadMetrics.getHost(request.getUrl()));
+        mVerifier = DownloadVerifier.create(request);
+
+        final RetryPolicy retryPolicy = request.getRetryPolicy();
+        mRetryPolicy = retryPolicy != null ? retryPolicy : DownloadManagerConfig.get().getRetryPolicy();
+    }
+
+    private static HttpRequest newHttpRequest(DownloadRequest downloadRequest)
+    {
+        final HttpRequest httpRequest = HttpRequest.get(downloadRequest.getUrl());
+        return httpRequest
+                .connectTimeout(15 * 1000)
+                .readTimeout(15 * 1000)
+                .trustAllHosts()
+                .trustAllCerts();
+    }
+
+    /**
+     * 返回下载请求需要遵守的限速器，包括全局限速器和任务限速器
+     */
+    private static BandwidthLimiter[] getBandwidthLimiters(DownloadRequest request)
+    {
+        final BandwidthLimiter globalLimiter = DownloadManagerConfig.get().getBandwidthLimiter();
+        final BandwidthLimiter requestLimiter = request.getBandwidthLimiter();
+        if (requestLimiter == null || requestLimiter == globalLimiter)
+            return new BandwidthLimiter[]{globalLimiter};
+        return new BandwidthLimiter[]{requestLimiter, globalLimiter};
+    }
+
+    /**
+     * 设置第一次读取到数据的监听，分段下载时只在第一个读取到数据的分段通知一次，需要在{@link #download()}之前调用
+     */
+    public void setFirstReadListener(FirstReadListener listener)
+    {
+        mFirstReadListener = listener;
+    }
+
+    private void notifyFirstRead()
+    {
+        final FirstReadListener listener = mFirstReadListener;
+        if (listener != null && mFirstRead.compareAndSet(false, true))
+            listener.onFirstRead();
+    }
+
+    /**
+     * 通知下载异常，{@link HttpRequest.HttpRequestException}会转为原始的异常，其他运行时异常直接抛出
+     */
+    public static void notifyError(IDownloadUpdater updater, Exception e)
+    {
+        Throwable throwable = e;
+        if (e instanceof RuntimeException)
+        {
+            if (e instanceof HttpRequest.HttpRequestException)
+            {
+                final Throwable cause = e.getCause();
+                if (cause != null)
+                    throwable = cause;
+            } else
+            {
+                throw (RuntimeException) e;
+            }
+        }
+        updater.notifyError(new DownloadHttpException(throwable));
+    }
+
+    /**
+     * 停止下载，断开所有连接，让阻塞中的读取尽快结束
+     */
+    public void stop()
+    {
+        mStopped = true;
+
+        final HttpRequest httpRequest = mHttpRequest;
+        if (httpRequest != null)
+            httpRequest.disconnect();
+
+        for (Segment segment : mListSegment)
+        {
+            segment.stop();
+        }
+    }
+
+    private void checkStopped() throws IOException
+    {
+        if (isStopped())
+            throw new InterruptedIOException("download stopped");
+    }
+
+    private boolean isStopped()
+    {
+        return mStopped || Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * 是否保存断点信息，允许重试时即使不需要断点下载，重试的时候也要从已经下载的位置继续
+     */
+    private boolean isSaveBreakpoint()
+    {
+        return mPreferBreakpoint || mRetryPolicy.getMaxAttempts() > 1;
+    }
+
+    /**
+     * 返回下载过程中需要更新的摘要对象，null-不需要计算校验值
+     */
+    private MessageDigest getDigest()
+    {
+        return mVerifier == null ? null : mVerifier.getDigest();
+    }
+
+    /**
+     * 校验下载完成的文件，校验失败时删除文件并通知更新对象，失败的数据不能用于断点下载
+     *
+     * @return true-校验通过
+     */
+    private boolean verify()
+    {
+        if (mVerifier == null)
+            return true;
+
+        final DownloadVerifyException e = mVerifier.verify(mFile);
+        if (e == null)
+            return true;
+
+        BreakpointInfo.delete(mFile);
+        mFile.delete();
+        mUpdater.notifyError(e);
+        return false;
+    }
+
+    private int connect(HttpRequest httpRequest) throws IOException
+    {
+        mHttpRequest = httpRequest;
+        checkStopped();
+        return mMeter.connect(httpRequest);
+    }
+
+    /**
+     * 下载，下载成功或者服务端返回错误码时会通知更新对象，连接或者读写异常时抛出异常。
+     * 失败之后按照重试策略重试，重试时从临时文件已经下载的位置继续下载
+     */
+    public void download() throws IOException
+    {
+        final RetryPolicy policy = mRetryPolicy;
+        int attempt = 1;
+        while (true)
+        {
+            long delay;
+            try
+            {
+                download(attempt > 1);
+                return;
+            } catch (DownloadHttpException e)
+            {
+                if (attempt >= policy.getMaxAttempts() || !policy.isRetryableCode(e.getResponseCode()) || isStopped())
+                {
+                    mUpdater.notifyError(e);
+                    return;
+                }
+
+                delay = policy.getDelay(attempt);
+                final long retryAfter = getRetryAfter(mHttpRequest);
+                if (retryAfter > 0)
+                    delay = Math.min(Math.max(delay, retryAfter), policy.getMaxDelay());
+            } catch (IOException | HttpRequest.HttpRequestException e)
+            {
+                if (attempt >= policy.getMaxAttempts() || isStopped())
+                    throw e;
+
+                delay = policy.getDelay(attempt);
+            }
+
+            attempt++;
+            sleep(delay);
+        }
+    }
+
+    /**
+     * 下载一次
+     *
+     * @param retry 是否是重试，重试时即使不需要断点下载，也从已经下载的位置继续
+     * @throws DownloadHttpException 服务端返回错误的状态码
+     */
+    private void download(boolean retry) throws IOException, DownloadHttpException
+    {
+        final DownloadRequest request = mRequest;
+        final File file = mFile;
+        final String url = request.getUrl();
+        long length = file.length();
+
+        BreakpointInfo breakpointInfo = null;
+        if ((mPreferBreakpoint || retry) && length > 0)
+        {
+            breakpointInfo = BreakpointInfo.read(file);
+            if (breakpointInfo != null)
+            {
+                length = breakpointInfo.getResumeLength(length);
+                if (length <= 0 || !breakpointInfo.canResume(url, DownloadManagerConfig.get().getCacheKeyStrategy(), length))
+                    breakpointInfo = null;
+                else
+                    // 进程被杀死时没有截断预先分配的空间，去掉没有写入的部分
+                    truncate(file, length);
+            }
+        }
+
+        if (mMaxSegmentCount > 1 && breakpointInfo == null)
+        {
+            if (downloadSegmented())
+                return;
+        }
+
+        HttpRequest httpRequest = newHttpRequest(request);
+        if (breakpointInfo != null)
+        {
+            // 服务端文件没有变化时才返回206，否则返回200和完整的文件
+            httpRequest.header("Range", "bytes=" + length + "-")
+                    .header("If-Range", breakpointInfo.getValidator());
+        }
+
+        int code = connect(httpRequest);
+        if (breakpointInfo != null)
+        {
+            if (code == HttpURLConnection.HTTP_PARTIAL)
+            {
+                downloadBreakpoint(httpRequest, breakpointInfo);
+                return;
+            } else if (code == HTTP_RANGE_NOT_SATISFIABLE)
+            {
+                // 断点位置无效，尝试正常下载
+                httpRequest = newHttpRequest(request);
+                code = connect(httpRequest);
+            }
+        }
+
+        if (code == HttpURLConnection.HTTP_OK)
+        {
+            BreakpointInfo.delete(file);
+            BreakpointInfo info = null;
+            if (isSaveBreakpoint())
+            {
+                info = BreakpointInfo.create(url, httpRequest, httpRequest.contentLength());
+                if (info != null)
+                    info.save(file, 0);
+            }
+            downloadNormal(httpRequest, info);
+        } else
+        {
+            throw new DownloadHttpException(code);
+        }
+    }
+
+    /**
+     * 连接被提前关闭时读取到的也是正常的结束，需要检查长度，未完成的部分保留用于断点下载或者重试
+     *
+     * @param total 文件总长度，小于等于0表示长度未知，不检查
+     */
+    private static void checkComplete(long total, long length) throws IOException
+    {
+        if (total > 0 && length < total)
+            throw new IOException("download incomplete " + length + "/" + total);
+    }
+
+    /**
+     * 返回响应头Retry-After指定的等待时间(毫秒)，只支持秒数
+     *
+     * @return 小于等于0-没有指定
+     */
+    private static long getRetryAfter(HttpRequest httpRequest)
+    {
+        if (httpRequest == null)
+            return 0;
+
+        final String retryAfter = httpRequest.header("Retry-After");
+        if (retryAfter == null)
+            return 0;
+
+        try
+        {
+            return Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    private static void sleep(long delay) throws InterruptedIOException
+    {
+        if (delay <= 0)
+            return;
+
+        try
+        {
+            Thread.sleep(delay);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * @param breakpointInfo 已经保存的断点信息，null-不保存断点信息
+     */
+    private void downloadNormal(HttpRequest request, BreakpointInfo breakpointInfo) throws IOException
+    {
+        final File file = mFile;
+        final IDownloadUpdater updater = mUpdater;
+        final CommitRecorder recorder = new CommitRecorder(breakpointInfo);
+
+        InputStream input = null;
+        FileOutputStream output = null;
+        DiskSpace.Reservation reservation = null;
+
+        try
+        {
+            final long total = request.contentLength();
+            reservation = reserveSpace(total);
+            if (reservation == null)
+            {
+                // 不读取响应体，断开连接
+                request.disconnect();
+                return;
+            }
+
+            input = request.stream();
+            output = new FileOutputStream(file);
+            final FileChannel channel = output.getChannel();
+            if (DiskSpace.preallocate(output.getFD(), 0, total))
+                reservation.release();
+
+            if (mVerifier != null)
+                mVerifier.reset();
+
+            final long[] written = new long[1];
+            final long start = System.nanoTime();
+            final long transferred;
+            try
+            {
+                transferred = transfer(input, channel, 0, -1, mLimiters, getDigest(), new DownloadTransferCallback()
+                {
+                    @Override
+                    public void count(long count)
+                    {
+                        written[0] = count;
+                        recorder.record(count, false);
+                        updater.notifyProgress(total, count);
+                    }
+                });
+            } finally
+            {
+                truncate(file, written[0]);
+                recorder.record(written[0], true);
+            }
+            mMeter.recordTransfer(transferred, System.nanoTime() - start);
+            checkComplete(total, transferred);
+            BreakpointInfo.delete(file);
+            closeQuietly(output);
+            if (verify())
+                updater.notifySuccess();
+        } finally
+        {
+            closeQuietly(input);
+            closeQuietly(output);
+            if (reservation != null)
+                reservation.release();
+        }
+    }
+
+    private void downloadBreakpoint(HttpRequest request, BreakpointInfo breakpointInfo) throws IOException
+    {
+        final File file = mFile;
+        final IDownloadUpdater updater = mUpdater;
+        final CommitRecorder recorder = new CommitRecorder(breakpointInfo);
+
+        final long length = file.length();
+        if (length <= 0)
+            throw new RuntimeException("file length must > 0");
+
+        InputStream input = null;
+        RandomAccessFile randomAccessFile = null;
+        DiskSpace.Reservation reservation = null;
+
+        try
+        {
+            long total = parseContentRangeTotal(request.header("Content-Range"));
+            if (total <= 0)
+            {
+                final long contentLength = request.contentLength();
+                total = contentLength > 0 ? contentLength + length : -1;
+            }
+
+            final long remaining = total > 0 ? total - length : -1;
+            reservation = reserveSpace(remaining);
+            if (reservation == null)
+            {
+                // 不读取响应体，断开连接
+                request.disconnect();
+                return;
+            }
+
+            input = request.stream();
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            final FileChannel channel = randomAccessFile.getChannel();
+            // 分配空间之前记录已经写入的长度，旧的断点信息可能没有记录
+            recorder.record(length, true);
+            if (DiskSpace.preallocate(randomAccessFile.getFD(), length, remaining))
+                reservation.release();
+
+            if (mVerifier != null)
+            {
+                // 已经下载的部分只需要读取一次
+                mVerifier.reset();
+                mVerifier.update(file, length);
+            }
+
+            final long finalTotal = total;
+            final long[] written = new long[1];
+            final long start = System.nanoTime();
+            final long transferred;
+            try
+            {
+                transferred = transfer(input, channel, length, -1, mLimiters, getDigest(), new DownloadTransferCallback()
+                {
+                    @Override
+                    public void count(long count)
+                    {
+                        written[0] = count;
+                        recorder.record(count + length, false);
+                        updater.notifyProgress(finalTotal, count + length);
+                    }
+                });
+            } finally
+            {
+                truncate(file, length + written[0]);
+                recorder.record(length + written[0], true);
+            }
+            mMeter.recordTransfer(transferred, System.nanoTime() - start);
+            checkComplete(total, length + transferred);
+            BreakpointInfo.delete(file);
+            closeQuietly(randomAccessFile);
+            if (verify())
+                updater.notifySuccess();
+        } finally
+        {
+            closeQuietly(input);
+            closeQuietly(randomAccessFile);
+            if (reservation != null)
+                reservation.release();
+        }
+    }
+
+    /**
+     * 分段下载
+     *
+     * @return true-已经按照分段的方式下载完成；false-服务端不支持分段下载
+     */
+    private boolean downloadSegmented() throws IOException
+    {
+        final DownloadRequest request = mRequest;
+        final File file = mFile;
+
+        final long total;
+        final BreakpointInfo breakpointInfo;
+        final HttpRequest probeRequest = newHttpRequest(request).header("Range", "bytes=0-0");
+        try
+        {
+            if (connect(probeRequest) != HttpURLConnection.HTTP_PARTIAL)
+                return false;
+
+            total = parseContentRangeTotal(probeRequest.header("Content-Range"));
+            breakpointInfo = BreakpointInfo.create(request.getUrl(), probeRequest, total);
+        } finally
+        {
+            probeRequest.disconnect();
+        }
+
+        final int segmentCount = (int) Math.min(mMaxSegmentCount, total / MIN_SEGMENT_SIZE);
+        if (segmentCount <= 1)
+            return false;
+
+        final DiskSpace.Reservation reservation = reserveSpace(total);
+        if (reservation == null)
+            return true;
+
+        BreakpointInfo.delete(file);
+        final boolean saveBreakpoint = isSaveBreakpoint() && breakpointInfo != null;
+        if (saveBreakpoint)
+            breakpointInfo.save(file, 0);
+        final CommitRecorder recorder = new CommitRecorder(saveBreakpoint ? breakpointInfo : null);
+
+        // 分段带上校验值，如果下载过程中服务端文件发生变化，则分段请求会失败，避免拼接不同版本的数据
+        final String validator = breakpointInfo == null ? null : breakpointInfo.getValidator();
+
+        final List<Segment> listSegment = new ArrayList<>(segmentCount);
+        final long segmentSize = total / segmentCount;
+        for (int i = 0; i < segmentCount; i++)
+        {
+            final long start = i * segmentSize;
+            final long end = i == segmentCount - 1 ? total - 1 : start + segmentSize - 1;
+            listSegment.add(new Segment(validator, start, end));
+        }
+        mListSegment = listSegment;
+
+        final SegmentProgress progress = new SegmentProgress(total);
+        final List<Future<?>> listFuture = new ArrayList<>(segmentCount);
+
+        // 所有分段共用一个文件通道，按各自的位置写入
+        final RandomAccessFile randomAccessFile;
+        try
+        {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+        } catch (IOException e)
+        {
+            reservation.release();
+            throw e;
+        }
+        final FileChannel channel = randomAccessFile.getChannel();
+        try
+        {
+            checkStopped();
+            randomAccessFile.setLength(0);
+            // 断点信息中记录的是从头开始连续写入的长度，进程被杀死之后也不会把空洞当成已经下载的数据，所以可以直接分配完整的长度
+            if (DiskSpace.preallocate(randomAccessFile.getFD(), 0, total))
+                reservation.release();
+            for (int i = 1; i < segmentCount; i++)
+            {
+                final Segment segment = listSegment.get(i);
+                final FutureTask<Void> future = new FutureTask<>(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            segment.download(channel, progress, recorder);
+                        } catch (IOException e)
+                        {
+                            throw new HttpRequest.HttpRequestException(e);
+                        }
+                    }
+                }, null);
+                listFuture.add(future);
+                mSegmentExecutor.execute(future);
+            }
+
+            // 第一段在当前线程下载
+            listSegment.get(0).download(channel, progress, recorder);
+
+            for (Future<?> future : listFuture)
+            {
+                waitSegment(future);
+            }
+        } catch (IOException | RuntimeException e)
+        {
+            for (Future<?> future : listFuture)
+            {
+                future.cancel(true);
+            }
+            for (Segment segment : listSegment)
+            {
+                segment.stop();
+            }
+            closeQuietly(randomAccessFile);
+            // 截断为从头开始连续下载完成的部分，保证断点下载时文件中没有空洞
+            final long committed = getCommittedLength(listSegment);
+            truncate(file, committed);
+            recorder.record(committed, true);
+            throw e;
+        } finally
+        {
+            closeQuietly(randomAccessFile);
+            reservation.release();
+        }
+
+        BreakpointInfo.delete(file);
+        if (mVerifier != null)
+        {
+            // 分段不是按顺序写入的，全部完成之后再计算校验值，刚写入的数据一般还在页缓存中
+            mVerifier.reset();
+            mVerifier.update(file, total);
+        }
+        if (verify())
+            mUpdater.notifySuccess();
+        return true;
+    }
+
+    private static void waitSegment(Future<?> future) throws IOException
+    {
+        try
+        {
+            future.get();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            if (cause instanceof HttpRequest.HttpRequestException)
+                throw ((HttpRequest.HttpRequestException) cause).getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * 申请磁盘空间，空间不足时通知更新对象
+     *
+     * @param bytes 需要写入的字节数，小于等于0表示长度未知，不检查
+     * @return null-空间不足；不为null-申请成功，下载结束之后需要释放
+     */
+    private DiskSpace.Reservation reserveSpace(long bytes)
+    {
+        final DiskSpace.Reservation reservation = DiskSpace.reserve(mFile, bytes);
+        if (reservation == null)
+            mUpdater.notifyError(new DownloadSpaceException(bytes, DiskSpace.getAvailable(mFile)));
+        return reservation;
+    }
+
+    /**
+     * 预先分配空间之后文件长度是完整的长度，下载结束或者继续下载之前截断为实际写入的长度，否则断点下载的位置不正确。
+     * 线程被中断时文件通道已经关闭，所以重新打开文件截断
+     */
+    private static void truncate(File file, long length)
+    {
+        if (file.length() <= length)
+            return;
+
+        RandomAccessFile randomAccessFile = null;
+        try
+        {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(length);
+        } catch (IOException ignored)
+        {
+        } finally
+        {
+            closeQuietly(randomAccessFile);
+        }
+    }
+
+    /**
+     * 返回分段下载时从头开始连续下载完成的长度
+     */
+    private static long getCommittedLength(List<Segment> listSegment)
+    {
+        long length = 0;
+        for (Segment segment : listSegment)
+        {
+            length += segment.mDownloaded;
+            if (!segment.isComplete())
+                break;
+        }
+        return length;
+    }
+
+    /**
+     * 解析Content-Range中的总长度，例如：bytes 0-0/1024
+     */
+    static long parseContentRangeTotal(String contentRange)
+    {
+        if (contentRange == null)
+            return -1;
+
+        final int index = contentRange.lastIndexOf('/');
+        if (index < 0)
+            return -1;
+
+        try
+        {
+            return Long.parseLong(contentRange.substring(index + 1).trim());
+        } catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    private final class Segment
+    {
+        private final String mValidator;
+        private final long mStart;
+        private final long mEnd;
+
+        private volatile long mDownloaded;
+        private volatile HttpRequest mSegmentRequest;
+
+        public Segment(String validator, long start, long end)
+        {
+            mValidator = validator;
+            mStart = start;
+            mEnd = end;
+        }
+
+        public long getLength()
+        {
+            return mEnd - mStart + 1;
+        }
+
+        public boolean isComplete()
+        {
+            return mDownloaded == getLength();
+        }
+
+        public void download(FileChannel channel, final SegmentProgress progress, final CommitRecorder recorder) throws IOException
+        {
+            final HttpRequest httpRequest = newHttpRequest(mRequest)
+                    .header("Range", "bytes=" + mStart + "-" + mEnd);
+            if (mValidator != null)
+                httpRequest.header("If-Range", mValidator);
+            mSegmentRequest = httpRequest;
+
+            InputStream input = null;
+            try
+            {
+                checkStopped();
+                final int code = mMeter.connect(httpRequest);
+                if (code != HttpURLConnection.HTTP_PARTIAL)
+                    throw new IOException("segment " + mStart + "-" + mEnd + " response code:" + code);
+
+                input = httpRequest.stream();
+                final long start = System.nanoTime();
+                final long transferred = transfer(input, channel, mStart, getLength(), mLimiters, null, new DownloadTransferCallback()
+                {
+                    @Override
+                    public void count(long count)
+                    {
+                        final long length = count - mDownloaded;
+                        mDownloaded = count;
+                        recorder.record(getCommittedLength(mListSegment), false);
+                        progress.add(length);
+                    }
+                });
+                mMeter.recordTransfer(transferred, System.nanoTime() - start);
+
+                if (!isComplete())
+                    throw new IOException("segment " + mStart + "-" + mEnd + " incomplete:" + mDownloaded);
+            } finally
+            {
+                closeQuietly(input);
+            }
+        }
+
+        /**
+         * 断开连接，让阻塞中的读取尽快结束
+         */
+        public void stop()
+        {
+            final HttpRequest httpRequest = mSegmentRequest;
+            if (httpRequest != null)
+                httpRequest.disconnect();
+        }
+    }
+
+    /**
+     * 分段下载的总进度，多个分段线程同时更新。累加和通知在同一个锁里面执行，
+     * 通知的下载量只增不减，否则后通知的较小的值会让进度回退，速率计算为负数
+     */
+    private final class SegmentProgress
+    {
+        private final long mTotal;
+        private long mDownloaded;
+
+        public SegmentProgress(long total)
+        {
+            mTotal = total;
+        }
+
+        public synchronized void add(long length)
+        {
+            mDownloaded += length;
+            mUpdater.notifyProgress(mTotal, mDownloaded);
+        }
+    }
+
+    /**
+     * 按照固定的间隔把临时文件从头开始已经写入的长度保存到断点信息文件，
+     * 进程被杀死时来不及截断预先分配的空间，继续下载之前按照保存的长度截断
+     */
+    private final class CommitRecorder
+    {
+        /** null-不保存断点信息 */
+        private final BreakpointInfo mInfo;
+        private long mLastTime;
+
+        public CommitRecorder(BreakpointInfo info)
+        {
+            mInfo = info;
+        }
+
+        /**
+         * @param force true-不检查间隔，立即保存
+         */
+        public synchronized void record(long committed, boolean force)
+        {
+            if (mInfo == null)
+                return;
+
+            final long time = System.currentTimeMillis();
+            if (!force && time - mLastTime < COMMIT_INTERVAL)
+                return;
+
+            mLastTime = time;
+            mInfo.save(mFile, committed);
+        }
+    }
+
+    static long transfer(InputStream input, FileChannel channel, long position, long limit, BandwidthLimiter[] limiters, TransferCallback callback) throws IOException
+    {
+        return transfer(input, channel, position, limit, limiters, null, callback);
+    }
+
+    /**
+     * 把输入流的数据写入文件通道，读取的数据先合并到缓冲区，缓冲区满了之后再写入。
+     * 缓冲区池只提供堆缓冲区，直接读取到缓冲区的数组
+     *
+     * @param position 开始写入的位置
+     * @param limit    最多写入的长度，小于0表示不限制
+     * @param limiters 限速器，每次读取之后都要向限速器申请读取的字节数
+     * @param digest   写入之前用缓冲区中的数据更新摘要，null-不计算
+     * @return 写入的长度
+     */
+    static long transfer(InputStream input, FileChannel channel, long position, long limit, BandwidthLimiter[] limiters, MessageDigest digest, TransferCallback callback) throws IOException
+    {
+        final ByteBuffer buffer = ByteBufferPool.obtain();
+        try
+        {
+            long count = 0;
+            boolean eof = false;
+            boolean firstRead = false;
+            while (!eof)
+            {
+                if (limit >= 0)
+                {
+                    final long remaining = limit - count;
+                    if (remaining <= 0)
+                        break;
+                    if (remaining < buffer.capacity())
+                        buffer.limit((int) remaining);
+                }
+
+                while (buffer.hasRemaining())
+                {
+                    final int read = read(input, buffer);
+                    if (read < 0)
+                    {
+                        eof = true;
+                        break;
+                    }
+                    if (read > 0 && !firstRead)
+                    {
+                        firstRead = true;
+                        callback.onFirstRead();
+                    }
+                    acquireBandwidth(limiters, read);
+                }
+
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedIOException();
+
+                buffer.flip();
+                if (!buffer.hasRemaining())
+                    break;
+
+                if (digest != null)
+                {
+                    digest.update(buffer);
+                    buffer.rewind();
+                }
+
+                while (buffer.hasRemaining())
+                {
+                    count += channel.write(buffer, position + count);
+                }
+                buffer.clear();
+                callback.count(count);
+            }
+            return count;
+        } finally
+        {
+            ByteBufferPool.recycle(buffer);
+        }
+    }
+
+    /**
+     * 读取数据到堆缓冲区的数组
+     *
+     * @return 读取的长度，-1表示结束
+     */
+    private static int read(InputStream input, ByteBuffer buffer) throws IOException
+    {
+        final int position = buffer.position();
+        final int read = input.read(buffer.array(), buffer.arrayOffset() + position, buffer.remaining());
+        if (read > 0)
+            buffer.position(position + read);
+        return read;
+    }
+
+    private static void acquireBandwidth(BandwidthLimiter[] limiters, int bytes) throws InterruptedIOException
+    {
+        try
+        {
+            for (BandwidthLimiter limiter : limiters)
+            {
+                limiter.acquire(bytes);
+            }
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable != null)
+        {
+            try
+            {
+                closeable.close();
+            } catch (Throwable ignored)
+            {
+            }
+        }
+    }
+
+    abstract static class TransferCallback
+    {
+        /**
+         * 写入之后回调
+         *
+         * @param count 已经写入的长度
+         */
+        public abstract void count(long count);
+
+        /**
+         * 第一次读取到数据，缓冲区还没有写满
+         */
+        public void onFirstRead()
+        {
+        }
+    }
+
+    /**
+     * 下载时使用的回调，第一次读取到数据时通知{@link FirstReadListener}
+     */
+    private abstract class DownloadTransferCallback extends TransferCallback
+    {
+        @Override
+        public void onFirstRead()
+        {
+            notifyFirstRead();
+        }
+    }
+
+    interface FirstReadListener
+    {
+        /**
+         * 下载开始之后第一次读取到数据
+         */
+        void onFirstRead();
+    }
+}
@@ -1741,9 +1741,9 @@ class HttpRequest {
    * @return stream
    */
   protected ByteArrayOutputStream byteStream() {
-    final int size = contentLength();
-    if (size > 0)
-      return new ByteArrayOutputStream(size);
+    final long size = contentLength();
+    if (size > 0 && size <= Integer.MAX_VALUE)
+      return new ByteArrayOutputStream((int) size);
     else
       return new ByteArrayOutputStream();
   }
@@ -2180,6 +2180,40 @@ class HttpRequest {
     return getConnection().getHeaderFieldInt(name, defaultValue);
   }
 
+  /**
+   * Get a long header from the response falling back to returning -1 if the
+   * header is missing or parsing fails
+   *
+   * @param name
+   * @return header value as a long, -1 when missing or parsing fails
+   * @throws HttpRequestException
+   */
+  public long longHeader(final String name) throws HttpRequestException {
+    return longHeader(name, -1L);
+  }
+
+  /**
+   * Get a long header value from the response falling back to the given
+   * default value if the header is missing or if parsing fails
+   *
+   * @param name
+   * @param defaultValue
+   * @return header value as a long, default value when missing or parsing
+   *         fails
+   * @throws HttpRequestException
+   */
+  public long longHeader(final String name, final long defaultValue)
+      throws HttpRequestException {
+    final String value = header(name);
+    if (value == null)
+      return defaultValue;
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
   /**
    * Get all values of the given header from the response
    *
@@ -2556,8 +2590,8 @@ class HttpRequest {
    *
    * @return response header value
    */
-  public int contentLength() {
-    return intHeader(HEADER_CONTENT_LENGTH);
+  public long contentLength() {
+    return longHeader(HEADER_CONTENT_LENGTH);
   }
 
   /**
@@ -0,0 +1,119 @@
+package com.sd.lib.dldmgr.executor.impl;
+
+/**
+ * 下载任务调度策略
+ */
+public class SchedulePolicy
+{
+    /** 是否允许高优先级的任务抢占正在下载的低优先级任务 */
+    private final boolean mPreemptive;
+    /** 同一个域名同时下载的最大任务数量，小于等于0表示不限制 */
+    private final int mMaxTasksPerHost;
+    /** 优先级相同时是否在不同域名之间轮流调度 */
+    private final boolean mHostRoundRobin;
+    /** 自适应并发时最少同时下载的任务数量 */
+    private final int mMinConcurrency;
+    /** 自适应并发时最多同时下载的任务数量，小于等于0表示不开启自适应并发 */
+    private final int mMaxConcurrency;
+
+    private SchedulePolicy(Builder builder)
+    {
+        mPreemptive = builder.mPreemptive;
+        mMaxTasksPerHost = builder.mMaxTasksPerHost;
+        mHostRoundRobin = builder.mHostRoundRobin;
+        mMinConcurrency = builder.mMinConcurrency;
+        mMaxConcurrency = builder.mMaxConcurrency;
+    }
+
+    public boolean isPreemptive()
+    {
+        return mPreemptive;
+    }
+
+    public int getMaxTasksPerHost()
+    {
+        return mMaxTasksPerHost;
+    }
+
+    public boolean isHostRoundRobin()
+    {
+        return mHostRoundRobin;
+    }
+
+    public boolean isAdaptiveConcurrency()
+    {
+        return mMaxConcurrency > 0;
+    }
+
+    public int getMinConcurrency()
+    {
+        return mMinConcurrency;
+    }
+
+    public int getMaxConcurrency()
+    {
+        return mMaxConcurrency;
+    }
+
+    public static class Builder
+    {
+        private boolean mPreemptive;
+        private int mMaxTasksPerHost;
+        private boolean mHostRoundRobin;
+        private int mMinConcurrency;
+        private int mMaxConcurrency;
+
+        /**
+         * 设置是否允许抢占，默认false
+         * <p>
+         * 允许抢占时，如果等待中的任务优先级高于正在下载的任务，则暂停优先级最低的下载任务，
+         * 被暂停的任务重新进入等待队列，临时文件会保留，恢复下载时从断点继续（需要开启断点下载）
+         */
+        public Builder setPreemptive(boolean preemptive)
+        {
+            mPreemptive = preemptive;
+            return this;
+        }
+
+        /**
+         * 设置同一个域名同时下载的最大任务数量，默认0，即不限制
+         * <p>
+         * 某个域名的下载任务达到上限后，其他域名的等待任务可以先开始，避免慢速的域名占满所有下载位置
+         */
+        public Builder setMaxTasksPerHost(int maxTasksPerHost)
+        {
+            mMaxTasksPerHost = maxTasksPerHost;
+            return this;
+        }
+
+        /**
+         * 设置优先级相同时是否在不同域名之间轮流调度，默认false，即按照提交顺序调度
+         */
+        public Builder setHostRoundRobin(boolean hostRoundRobin)
+        {
+            mHostRoundRobin = hostRoundRobin;
+            return this;
+        }
+
+        /**
+         * 设置自适应并发，默认不开启，同时下载的任务数量固定为下载器的maxPoolSize
+         * <p>
+         * 开启之后以maxPoolSize作为初始值，有任务在等待时，根据所有任务的总速率和任务开始下载的延迟，
+         * 在[minConcurrency, maxConcurrency]之间调整同时下载的任务数量：总速率有提升则逐个增加，网络拥塞则按比例减少
+         *
+         * @param minConcurrency 最少同时下载的任务数量
+         * @param maxConcurrency 最多同时下载的任务数量，小于等于0表示不开启
+         */
+        public Builder setAdaptiveConcurrency(int minConcurrency, int maxConcurrency)
+        {
+            mMinConcurrency = Math.max(1, minConcurrency);
+            mMaxConcurrency = maxConcurrency <= 0 ? 0 : Math.max(mMinConcurrency, maxConcurrency);
+            return this;
+        }
+
+        public SchedulePolicy build()
+        {
+            return new SchedulePolicy(this);
+        }
+    }
+}
@@ -0,0 +1,520 @@
+package com.sd.lib.dldmgr.executor.impl;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 下载任务调度器，按照优先级调度等待中的任务，并控制同时下载的任务数量
+ */
+final class TaskScheduler
+{
+    /** 优先级高的在前，优先级相同的先提交的在前 */
+    private static final Comparator<Task> TASK_COMPARATOR = new Comparator<Task>()
+    {
+        @Override
+        public int compare(Task o1, Task o2)
+        {
+            if (o1.mPriority != o2.mPriority)
+                return o1.mPriority > o2.mPriority ? -1 : 1;
+            return o1.mSequence < o2.mSequence ? -1 : (o1.mSequence == o2.mSequence ? 0 : 1);
+        }
+    };
+
+    private final Map<String, Task> mMapTask = new HashMap<>();
+    /** 按域名分组的等待队列，遍历顺序为最近最少被调度的域名在前 */
+    private final LinkedHashMap<String, PriorityQueue<Task>> mMapPending = new LinkedHashMap<>();
+    private final List<Task> mRunningTasks = new ArrayList<>();
+    /** 每个域名正在下载的任务数量 */
+    private final Map<String, Integer> mMapHostRunning = new HashMap<>();
+
+    /** 同时下载的最大任务数量，自适应并发时由{@link #mController}调整 */
+    private int mMaxRunning;
+    private final SchedulePolicy mPolicy;
+    /** 自适应并发控制器，null-不开启 */
+    private final ConcurrencyController mController;
+
+    private ExecutorService mExecutor;
+    private long mSequence;
+
+    public TaskScheduler(int maxRunning, SchedulePolicy policy)
+    {
+        mPolicy = policy;
+        if (policy.isAdaptiveConcurrency())
+        {
+            mController = new ConcurrencyController(policy.getMinConcurrency(), policy.getMaxConcurrency(), maxRunning);
+            mMaxRunning = mController.getLimit();
+        } else
+        {
+            mController = null;
+            mMaxRunning = maxRunning;
+        }
+    }
+
+    /**
+     * 是否开启了自适应并发
+     */
+    public boolean isAdaptive()
+    {
+        return mController != null;
+    }
+
+    /**
+     * 返回当前同时下载的最大任务数量
+     */
+    public synchronized int getMaxRunning()
+    {
+        return mMaxRunning;
+    }
+
+    /**
+     * 记录下载的字节数，自适应并发时用于统计总速率，统计窗口结束之后调整同时下载的任务数量
+     */
+    public void recordTransfer(long bytes)
+    {
+        final ConcurrencyController controller = mController;
+        if (controller != null && controller.recordTransfer(bytes))
+            adjustConcurrency();
+    }
+
+    /**
+     * 记录任务开始执行到第一次读取到数据的延迟
+     */
+    public void recordLatency(long millis)
+    {
+        final ConcurrencyController controller = mController;
+        if (controller != null)
+            controller.recordLatency(millis);
+    }
+
+    private synchronized void adjustConcurrency()
+    {
+        final int limit = mController.evaluate(!mMapPending.isEmpty(), mRunningTasks.size());
+        if (limit == mMaxRunning)
+            return;
+
+        // 减少时不停止正在下载的任务，等任务结束之后不再开始新的任务
+        mMaxRunning = limit;
+        schedule();
+    }
+
+    private synchronized ExecutorService getExecutor()
+    {
+        if (mExecutor == null)
+        {
+            // 同时执行的任务数量由调度器控制，线程池只负责复用线程
+            mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                    10L, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>());
+        }
+        return mExecutor;
+    }
+
+    /**
+     * 提交任务
+     */
+    public synchronized void submit(Task task)
+    {
+        task.mScheduler = this;
+        task.mSequence = mSequence++;
+        mMapTask.put(task.mUrl, task);
+        addPending(task);
+        schedule();
+    }
+
+    /**
+     * 取消任务
+     *
+     * @return 被取消的任务，null-任务不存在
+     */
+    public synchronized Task cancel(String url)
+    {
+        final Task task = mMapTask.remove(url);
+        if (task == null)
+            return null;
+
+        task.mCancelled = true;
+        removePending(task);
+        return task;
+    }
+
+    /**
+     * 修改任务的优先级
+     *
+     * @return true-修改成功；false-任务不存在
+     */
+    public synchronized boolean setPriority(String url, int priority)
+    {
+        final Task task = mMapTask.get(url);
+        if (task == null)
+            return false;
+
+        if (task.mPriority == priority)
+            return true;
+
+        if (removePending(task))
+        {
+            task.mPriority = priority;
+            addPending(task);
+        } else
+        {
+            task.mPriority = priority;
+        }
+        schedule();
+        return true;
+    }
+
+    private synchronized void onTaskFinish(Task task, boolean finished)
+    {
+        removeRunning(task);
+        task.mFuture = null;
+
+        if (mMapTask.get(task.mUrl) == task)
+        {
+            if (!finished && !task.mCancelled)
+            {
+                // 任务被抢占，重新进入等待队列
+                task.mPreempted = false;
+                addPending(task);
+            } else
+            {
+                mMapTask.remove(task.mUrl);
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * 任务在开始执行之前被取消或者抢占，{@link Task#run()}不会被调用，需要在这里释放下载位置
+     */
+    private void onTaskCancelledBeforeRun(final Task task)
+    {
+        // 抢占时在持有锁的调度过程中回调，在线程池中释放位置，避免重入调度
+        getExecutor().execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                onTaskFinish(task, false);
+            }
+        });
+    }
+
+    private void schedule()
+    {
+        while (mRunningTasks.size() < mMaxRunning)
+        {
+            final Task task = pollPending();
+            if (task == null)
+                break;
+
+            addRunning(task);
+            final TaskFuture future = new TaskFuture(task);
+            task.mFuture = future;
+            getExecutor().execute(future);
+        }
+
+        if (mPolicy.isPreemptive())
+            preempt();
+    }
+
+    private void addPending(Task task)
+    {
+        PriorityQueue<Task> queue = mMapPending.get(task.mHost);
+        if (queue == null)
+        {
+            queue = new PriorityQueue<>(11, TASK_COMPARATOR);
+            mMapPending.put(task.mHost, queue);
+        }
+        queue.add(task);
+    }
+
+    private boolean removePending(Task task)
+    {
+        final PriorityQueue<Task> queue = mMapPending.get(task.mHost);
+        if (queue == null)
+            return false;
+
+        final boolean remove = queue.remove(task);
+        if (queue.isEmpty())
+            mMapPending.remove(task.mHost);
+        return remove;
+    }
+
+    /**
+     * 取出下一个可以开始的任务
+     *
+     * @return null-没有可以开始的任务
+     */
+    private Task pollPending()
+    {
+        final boolean roundRobin = mPolicy.isHostRoundRobin();
+
+        Task best = null;
+        for (Map.Entry<String, PriorityQueue<Task>> item : mMapPending.entrySet())
+        {
+            if (!isHostAvailable(item.getKey()))
+                continue;
+
+            final Task head = item.getValue().peek();
+            if (best == null)
+            {
+                best = head;
+                continue;
+            }
+
+            if (roundRobin)
+            {
+                // 优先级相同时，最近最少被调度的域名优先
+                if (head.mPriority > best.mPriority)
+                    best = head;
+            } else
+            {
+                if (TASK_COMPARATOR.compare(head, best) < 0)
+                    best = head;
+            }
+        }
+
+        if (best == null)
+            return null;
+
+        final PriorityQueue<Task> queue = mMapPending.remove(best.mHost);
+        queue.poll();
+        if (!queue.isEmpty())
+        {
+            // 重新放到最后，作为最近被调度的域名
+            mMapPending.put(best.mHost, queue);
+        }
+        return best;
+    }
+
+    private boolean isHostAvailable(String host)
+    {
+        final int maxTasksPerHost = mPolicy.getMaxTasksPerHost();
+        if (maxTasksPerHost <= 0)
+            return true;
+
+        final Integer count = mMapHostRunning.get(host);
+        return count == null || count < maxTasksPerHost;
+    }
+
+    private void addRunning(Task task)
+    {
+        mRunningTasks.add(task);
+        final Integer count = mMapHostRunning.get(task.mHost);
+        mMapHostRunning.put(task.mHost, count == null ? 1 : count + 1);
+    }
+
+    private void removeRunning(Task task)
+    {
+        if (!mRunningTasks.remove(task))
+            return;
+
+        final Integer count = mMapHostRunning.get(task.mHost);
+        if (count == null || count <= 1)
+            mMapHostRunning.remove(task.mHost);
+        else
+            mMapHostRunning.put(task.mHost, count - 1);
+    }
+
+    /**
+     * 如果等待中的任务优先级高于正在下载的任务，则暂停优先级最低的下载任务
+     */
+    private void preempt()
+    {
+        if (mMapPending.isEmpty())
+            return;
+
+        int minPriority = Integer.MAX_VALUE;
+        // 已经被抢占的任务结束后，空出来的位置会被等待中优先级最高的任务占用
+        int preempting = 0;
+        for (Task item : mRunningTasks)
+        {
+            if (item.mPreempted)
+                preempting++;
+            else if (!item.mCancelled)
+                minPriority = Math.min(minPriority, item.mPriority);
+        }
+
+        // 只需要比较优先级高于正在下载任务的等待任务
+        final List<Task> listPending = new ArrayList<>();
+        for (PriorityQueue<Task> queue : mMapPending.values())
+        {
+            final Iterator<Task> it = queue.iterator();
+            while (it.hasNext())
+            {
+                final Task task = it.next();
+                if (task.mPriority > minPriority)
+                    listPending.add(task);
+            }
+        }
+        Collections.sort(listPending, TASK_COMPARATOR);
+
+        for (int i = preempting; i < listPending.size(); i++)
+        {
+            final Task victim = findPreemptVictim();
+            if (victim == null)
+                break;
+
+            final Task task = listPending.get(i);
+            if (task.mPriority <= victim.mPriority)
+                break;
+
+            // 域名已经达到上限的任务，只能抢占同一个域名的任务
+            if (!isHostAvailable(task.mHost) && !task.mHost.equals(victim.mHost))
+                continue;
+
+            victim.mPreempted = true;
+            victim.stop();
+        }
+    }
+
+    /**
+     * 返回正在下载的任务中优先级最低，并且最后提交的任务
+     */
+    private Task findPreemptVictim()
+    {
+        Task victim = null;
+        for (Task item : mRunningTasks)
+        {
+            if (item.mPreempted || item.mCancelled)
+                continue;
+
+            if (victim == null || TASK_COMPARATOR.compare(item, victim) > 0)
+                victim = item;
+        }
+        return victim;
+    }
+
+    private static String getHost(String url)
+    {
+        try
+        {
+            final String host = new URL(url).getHost();
+            return host == null ? "" : host;
+        } catch (MalformedURLException e)
+        {
+            return "";
+        }
+    }
+
+    /**
+     * 每次调度任务创建一个，开始执行和开始之前被取消只会发生一个，保证每次调度只调用一次{@link #onTaskFinish(Task, boolean)}
+     */
+    private static final class TaskFuture extends FutureTask<Void>
+    {
+        private final Task mTask;
+        private final AtomicBoolean mStarted;
+
+        public TaskFuture(Task task)
+        {
+            this(task, new AtomicBoolean());
+        }
+
+        private TaskFuture(final Task task, final AtomicBoolean started)
+        {
+            super(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (started.compareAndSet(false, true))
+                        task.run();
+                }
+            }, null);
+            mTask = task;
+            mStarted = started;
+        }
+
+        @Override
+        protected void done()
+        {
+            if (isCancelled() && mStarted.compareAndSet(false, true))
+                mTask.mScheduler.onTaskCancelledBeforeRun(mTask);
+        }
+    }
+
+    /**
+     * 调度的任务
+     */
+    abstract static class Task implements Runnable
+    {
+        private final String mUrl;
+        private final String mHost;
+        private int mPriority;
+        private long mSequence;
+
+        private TaskScheduler mScheduler;
+        private volatile Future<?> mFuture;
+        private volatile boolean mPreempted;
+        private volatile boolean mCancelled;
+
+        public Task(String url, int priority)
+        {
+            mUrl = url;
+            mHost = getHost(url);
+            mPriority = priority;
+        }
+
+        /**
+         * 任务是否被抢占
+         */
+        public final boolean isPreempted()
+        {
+            return mPreempted;
+        }
+
+        @Override
+        public final void run()
+        {
+            boolean finished = true;
+            try
+            {
+                finished = execute();
+            } finally
+            {
+                mScheduler.onTaskFinish(this, finished);
+            }
+        }
+
+        /**
+         * 停止正在执行的任务
+         */
+        public final void stop()
+        {
+            final Future<?> future = mFuture;
+            if (future != null)
+                future.cancel(true);
+            onStop();
+        }
+
+        /**
+         * 执行任务
+         *
+         * @return true-任务结束；false-任务被抢占，需要重新调度
+         */
+        protected abstract boolean execute();
+
+        /**
+         * 任务被停止，可以在这里断开连接，让阻塞中的读取尽快结束
+         */
+        protected void onStop()
+        {
+        }
+    }
+}
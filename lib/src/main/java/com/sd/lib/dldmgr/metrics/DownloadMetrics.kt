@@ -0,0 +1,181 @@
+package com.sd.lib.dldmgr.metrics
+
+import com.sd.lib.dldmgr.DownloadError
+import com.sd.lib.dldmgr.executor.impl.ByteBufferPool
+import java.net.MalformedURLException
+import java.net.URL
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * 下载统计
+ *
+ * 耗时由下载执行器记录，任务数量和结果由下载管理器记录，自定义的下载执行器也可以调用对应的方法记录
+ */
+class DownloadMetrics {
+    /** 任务提交到开始执行的等待时长(毫秒) */
+    private val _queueWaitTime = Histogram(TIME_BOUNDS)
+
+    /** 建立连接的时长(毫秒) */
+    private val _connectTime = Histogram(TIME_BOUNDS)
+
+    /** 发起请求到收到响应头的时长(毫秒) */
+    private val _firstByteTime = Histogram(TIME_BOUNDS)
+
+    /** 任务添加到下载成功的时长(毫秒) */
+    private val _downloadTime = Histogram(TIME_BOUNDS)
+
+    private val _taskSubmitted = AtomicLong()
+    private val _taskSuccess = AtomicLong()
+    private val _taskError = AtomicLongArray(DownloadError.values().size)
+
+    private val _mapHost = ConcurrentHashMap<String, HostMetrics>()
+
+    /**
+     * 记录任务等待调度的时长
+     */
+    fun recordQueueWait(millis: Long) {
+        _queueWaitTime.record(millis)
+    }
+
+    /**
+     * 记录建立连接的时长
+     */
+    fun recordConnect(host: String, millis: Long) {
+        _connectTime.record(millis)
+        getHostMetrics(host).connectTime.record(millis)
+    }
+
+    /**
+     * 记录发起请求到收到响应头的时长
+     */
+    fun recordFirstByte(host: String, millis: Long) {
+        _firstByteTime.record(millis)
+        getHostMetrics(host).firstByteTime.record(millis)
+    }
+
+    /**
+     * 记录一次连接的传输量和传输时长
+     */
+    fun recordTransfer(host: String, bytes: Long, nanos: Long) {
+        if (bytes <= 0) return
+        val hostMetrics = getHostMetrics(host)
+        hostMetrics.bytes.addAndGet(bytes)
+        if (nanos > 0) {
+            // 用浮点数计算，超过9GB时整数乘法会溢出
+            hostMetrics.throughput.record((bytes * 1e9 / nanos).toLong())
+        }
+    }
+
+    /**
+     * 记录任务提交
+     */
+    fun recordTaskSubmitted() {
+        _taskSubmitted.incrementAndGet()
+    }
+
+    /**
+     * 记录任务成功
+     *
+     * @param millis 任务添加到下载成功的时长
+     */
+    fun recordTaskSuccess(host: String, millis: Long) {
+        _taskSuccess.incrementAndGet()
+        _downloadTime.record(millis)
+        getHostMetrics(host).success.incrementAndGet()
+    }
+
+    /**
+     * 记录任务失败
+     */
+    fun recordTaskError(host: String, error: DownloadError) {
+        _taskError.incrementAndGet(error.ordinal)
+        if (error != DownloadError.Cancel) {
+            getHostMetrics(host).failure.incrementAndGet()
+        }
+    }
+
+    /**
+     * 返回快照
+     */
+    fun snapshot(): DownloadMetricsSnapshot {
+        val errors = DownloadError.values()
+        val mapError = LinkedHashMap<DownloadError, Long>(errors.size)
+        for (error in errors) {
+            mapError[error] = _taskError.get(error.ordinal)
+        }
+
+        val mapHost = LinkedHashMap<String, HostMetricsSnapshot>()
+        for ((host, metrics) in _mapHost) {
+            mapHost[host] = metrics.snapshot()
+        }
+
+        return DownloadMetricsSnapshot(
+            time = System.currentTimeMillis(),
+            taskSubmitted = _taskSubmitted.get(),
+            taskSuccess = _taskSuccess.get(),
+            taskError = mapError,
+            queueWaitTime = _queueWaitTime.snapshot(),
+            connectTime = _connectTime.snapshot(),
+            firstByteTime = _firstByteTime.snapshot(),
+            downloadTime = _downloadTime.snapshot(),
+            hosts = mapHost,
+            bufferPool = BufferPoolSnapshot(
+                hit = ByteBufferPool.getHitCount(),
+                miss = ByteBufferPool.getMissCount(),
+                drop = ByteBufferPool.getDropCount(),
+                pooled = ByteBufferPool.getPooledCount()
+            )
+        )
+    }
+
+    private fun getHostMetrics(host: String): HostMetrics {
+        val metrics = _mapHost[host]
+        if (metrics != null) return metrics
+
+        val newMetrics = HostMetrics()
+        return _mapHost.putIfAbsent(host, newMetrics) ?: newMetrics
+    }
+
+    private class HostMetrics {
+        val connectTime = Histogram(TIME_BOUNDS)
+        val firstByteTime = Histogram(TIME_BOUNDS)
+        val throughput = Histogram(THROUGHPUT_BOUNDS)
+        val bytes = AtomicLong()
+        val success = AtomicLong()
+        val failure = AtomicLong()
+
+        fun snapshot(): HostMetricsSnapshot {
+            return HostMetricsSnapshot(
+                connectTime = connectTime.snapshot(),
+                firstByteTime = firstByteTime.snapshot(),
+                throughput = throughput.snapshot(),
+                bytes = bytes.get(),
+                success = success.get(),
+                failure = failure.get()
+            )
+        }
+    }
+
+    companion object {
+        /** 耗时的桶(毫秒)：1毫秒到约65秒 */
+        private val TIME_BOUNDS = Histogram.exponentialBounds(1, 2.0, 17)
+
+        /** 速率的桶(Bps)：1KBps到约1GBps */
+        private val THROUGHPUT_BOUNDS = Histogram.exponentialBounds(1024, 2.0, 21)
+
+        /**
+         * 返回[url]的域名，解析失败返回空字符串
+         */
+        @JvmStatic
+        fun getHost(url: String?): String {
+            if (url == null) return ""
+            return try {
+                URL(url).host ?: ""
+            } catch (e: MalformedURLException) {
+                ""
+            }
+        }
+    }
+}
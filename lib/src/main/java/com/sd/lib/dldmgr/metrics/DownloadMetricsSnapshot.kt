@@ -0,0 +1,61 @@
+package com.sd.lib.dldmgr.metrics
+
+import com.sd.lib.dldmgr.DownloadError
+
+/**
+ * 下载统计快照
+ */
+class DownloadMetricsSnapshot(
+    /** 快照时间 */
+    val time: Long,
+    /** 提交的任务数量 */
+    val taskSubmitted: Long,
+    /** 成功的任务数量 */
+    val taskSuccess: Long,
+    /** 每种错误的任务数量 */
+    val taskError: Map<DownloadError, Long>,
+    /** 任务提交到开始执行的等待时长(毫秒) */
+    val queueWaitTime: HistogramSnapshot,
+    /** 建立连接的时长(毫秒) */
+    val connectTime: HistogramSnapshot,
+    /** 发起请求到收到响应头的时长(毫秒) */
+    val firstByteTime: HistogramSnapshot,
+    /** 任务添加到下载成功的时长(毫秒) */
+    val downloadTime: HistogramSnapshot,
+    /** 每个域名的统计 */
+    val hosts: Map<String, HostMetricsSnapshot>,
+    /** 读写缓冲区池的统计 */
+    val bufferPool: BufferPoolSnapshot
+)
+
+/**
+ * 缓冲区池统计快照
+ */
+class BufferPoolSnapshot(
+    /** 从池中获取到空闲缓冲区的次数 */
+    val hit: Long,
+    /** 新创建缓冲区的次数 */
+    val miss: Long,
+    /** 池已满丢弃缓冲区的次数 */
+    val drop: Long,
+    /** 池中空闲的缓冲区数量 */
+    val pooled: Int
+)
+
+/**
+ * 域名统计快照
+ */
+class HostMetricsSnapshot(
+    /** 建立连接的时长(毫秒) */
+    val connectTime: HistogramSnapshot,
+    /** 发起请求到收到响应头的时长(毫秒) */
+    val firstByteTime: HistogramSnapshot,
+    /** 单个连接的传输速率(Bps) */
+    val throughput: HistogramSnapshot,
+    /** 传输的字节数 */
+    val bytes: Long,
+    /** 成功的任务数量 */
+    val success: Long,
+    /** 失败的任务数量(不包括取消) */
+    val failure: Long
+)
@@ -0,0 +1,105 @@
+package com.sd.lib.dldmgr.metrics
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * 固定桶的直方图，记录时不加锁，只做一次二分查找和几次原子累加
+ */
+class Histogram {
+    /** 每个桶的上限(包含)，最后还有一个无上限的桶 */
+    private val _bounds: LongArray
+    private val _bucketCounts: AtomicLongArray
+    private val _count = AtomicLong()
+    private val _sum = AtomicLong()
+
+    constructor(bounds: LongArray) {
+        require(bounds.isNotEmpty()) { "bounds is empty" }
+        for (i in 1 until bounds.size) {
+            require(bounds[i] > bounds[i - 1]) { "bounds must be increasing" }
+        }
+        _bounds = bounds.copyOf()
+        _bucketCounts = AtomicLongArray(bounds.size + 1)
+    }
+
+    /**
+     * 记录一个值
+     */
+    fun record(value: Long) {
+        var low = 0
+        var high = _bounds.size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (_bounds[mid] < value) low = mid + 1 else high = mid
+        }
+        _bucketCounts.incrementAndGet(low)
+        _count.incrementAndGet()
+        _sum.addAndGet(value)
+    }
+
+    /**
+     * 返回快照
+     */
+    fun snapshot(): HistogramSnapshot {
+        val counts = LongArray(_bucketCounts.length())
+        for (i in counts.indices) {
+            counts[i] = _bucketCounts.get(i)
+        }
+        return HistogramSnapshot(_bounds.copyOf(), counts, _count.get(), _sum.get())
+    }
+
+    companion object {
+        /**
+         * 指数增长的桶上限，例如：exponentialBounds(1, 2, 4) -> [1, 2, 4, 8]
+         */
+        @JvmStatic
+        fun exponentialBounds(start: Long, factor: Double, count: Int): LongArray {
+            require(start > 0) { "start must > 0" }
+            require(factor > 1) { "factor must > 1" }
+            val bounds = LongArray(count)
+            var bound = start.toDouble()
+            for (i in 0 until count) {
+                val value = bound.toLong()
+                bounds[i] = if (i > 0 && value <= bounds[i - 1]) bounds[i - 1] + 1 else value
+                bound *= factor
+            }
+            return bounds
+        }
+    }
+}
+
+/**
+ * 直方图快照
+ */
+class HistogramSnapshot(
+    /** 每个桶的上限(包含)，[bucketCounts]比[bounds]多一个无上限的桶 */
+    val bounds: LongArray,
+    /** 每个桶的数量(不累加) */
+    val bucketCounts: LongArray,
+    /** 总数量 */
+    val count: Long,
+    /** 所有值的和 */
+    val sum: Long
+) {
+    /** 平均值 */
+    val mean: Double
+        get() = if (count > 0) sum.toDouble() / count else 0.0
+
+    /**
+     * 返回百分位数的近似值(所在桶的上限)，例如：percentile(0.99)
+     *
+     * @return 落在无上限的桶中时返回[Long.MAX_VALUE]；没有数据时返回0
+     */
+    fun percentile(percent: Double): Long {
+        if (count <= 0) return 0
+        val target = Math.ceil(count * percent.coerceIn(0.0, 1.0)).toLong().coerceAtLeast(1)
+        var cumulative = 0L
+        for (i in bucketCounts.indices) {
+            cumulative += bucketCounts[i]
+            if (cumulative >= target) {
+                return if (i < bounds.size) bounds[i] else Long.MAX_VALUE
+            }
+        }
+        return Long.MAX_VALUE
+    }
+}
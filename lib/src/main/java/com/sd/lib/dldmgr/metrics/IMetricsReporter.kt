@@ -0,0 +1,11 @@
+package com.sd.lib.dldmgr.metrics
+
+/**
+ * 下载统计上报
+ */
+interface IMetricsReporter {
+    /**
+     * 上报快照，在后台线程调用
+     */
+    fun report(snapshot: DownloadMetricsSnapshot)
+}
@@ -0,0 +1,136 @@
+package com.sd.lib.dldmgr.metrics
+
+import java.io.File
+import java.io.IOException
+
+/**
+ * 把统计快照按照Prometheus文本格式写入本地文件
+ *
+ * 先写入临时文件再重命名，读取方不会读到写了一半的内容
+ */
+class PrometheusFileReporter(private val file: File) : IMetricsReporter {
+
+    override fun report(snapshot: DownloadMetricsSnapshot) {
+        val content = format(snapshot)
+        val dir = file.parentFile
+        if (dir != null && !dir.exists()) dir.mkdirs()
+
+        val tempFile = File(file.path + ".tmp")
+        try {
+            tempFile.writeText(content)
+            if (!tempFile.renameTo(file)) {
+                file.delete()
+                tempFile.renameTo(file)
+            }
+        } catch (e: IOException) {
+            e.printStackTrace()
+            tempFile.delete()
+        }
+    }
+
+    companion object {
+        private const val PREFIX = "dldmgr_"
+
+        /**
+         * 格式化为Prometheus文本格式
+         */
+        @JvmStatic
+        fun format(snapshot: DownloadMetricsSnapshot): String {
+            val builder = StringBuilder()
+
+            appendHeader(builder, "task_submitted_total", "counter", "Submitted download tasks")
+            appendSample(builder, "task_submitted_total", null, snapshot.taskSubmitted)
+
+            appendHeader(builder, "task_success_total", "counter", "Successful download tasks")
+            appendSample(builder, "task_success_total", null, snapshot.taskSuccess)
+
+            appendHeader(builder, "task_error_total", "counter", "Failed download tasks by error")
+            for ((error, count) in snapshot.taskError) {
+                appendSample(builder, "task_error_total", "error=\"${error.name}\"", count)
+            }
+
+            appendHistogram(builder, "queue_wait_milliseconds", "Time from submit to execution", null, snapshot.queueWaitTime)
+            appendHistogram(builder, "connect_milliseconds", "Time to establish connection", null, snapshot.connectTime)
+            appendHistogram(builder, "first_byte_milliseconds", "Time from request to response headers", null, snapshot.firstByteTime)
+            appendHistogram(builder, "download_milliseconds", "Time from add to success", null, snapshot.downloadTime)
+
+            appendHeader(builder, "buffer_pool_obtain_total", "counter", "Buffer pool obtains by result")
+            appendSample(builder, "buffer_pool_obtain_total", "result=\"hit\"", snapshot.bufferPool.hit)
+            appendSample(builder, "buffer_pool_obtain_total", "result=\"miss\"", snapshot.bufferPool.miss)
+
+            appendHeader(builder, "buffer_pool_drop_total", "counter", "Buffers dropped because the pool was full")
+            appendSample(builder, "buffer_pool_drop_total", null, snapshot.bufferPool.drop)
+
+            appendHeader(builder, "buffer_pool_pooled", "gauge", "Idle buffers in the pool")
+            appendSample(builder, "buffer_pool_pooled", null, snapshot.bufferPool.pooled.toLong())
+
+            if (snapshot.hosts.isNotEmpty()) {
+                appendHeader(builder, "host_bytes_total", "counter", "Downloaded bytes by host")
+                for ((host, metrics) in snapshot.hosts) {
+                    appendSample(builder, "host_bytes_total", hostLabel(host), metrics.bytes)
+                }
+
+                appendHeader(builder, "host_success_total", "counter", "Successful download tasks by host")
+                for ((host, metrics) in snapshot.hosts) {
+                    appendSample(builder, "host_success_total", hostLabel(host), metrics.success)
+                }
+
+                appendHeader(builder, "host_failure_total", "counter", "Failed download tasks by host, excluding cancel")
+                for ((host, metrics) in snapshot.hosts) {
+                    appendSample(builder, "host_failure_total", hostLabel(host), metrics.failure)
+                }
+
+                appendHostHistogram(builder, "host_connect_milliseconds", "Time to establish connection by host", snapshot) { it.connectTime }
+                appendHostHistogram(builder, "host_first_byte_milliseconds", "Time from request to response headers by host", snapshot) { it.firstByteTime }
+                appendHostHistogram(builder, "host_throughput_bytes_per_second", "Per connection throughput by host", snapshot) { it.throughput }
+            }
+            return builder.toString()
+        }
+
+        private inline fun appendHostHistogram(
+            builder: StringBuilder,
+            name: String,
+            help: String,
+            snapshot: DownloadMetricsSnapshot,
+            histogram: (HostMetricsSnapshot) -> HistogramSnapshot
+        ) {
+            appendHeader(builder, name, "histogram", help)
+            for ((host, metrics) in snapshot.hosts) {
+                appendHistogramSamples(builder, name, hostLabel(host), histogram(metrics))
+            }
+        }
+
+        private fun appendHistogram(builder: StringBuilder, name: String, help: String, labels: String?, histogram: HistogramSnapshot) {
+            appendHeader(builder, name, "histogram", help)
+            appendHistogramSamples(builder, name, labels, histogram)
+        }
+
+        private fun appendHistogramSamples(builder: StringBuilder, name: String, labels: String?, histogram: HistogramSnapshot) {
+            val prefix = if (labels == null) "" else "$labels,"
+            var cumulative = 0L
+            for (i in histogram.bucketCounts.indices) {
+                cumulative += histogram.bucketCounts[i]
+                val le = if (i < histogram.bounds.size) histogram.bounds[i].toString() else "+Inf"
+                appendSample(builder, "${name}_bucket", "${prefix}le=\"$le\"", cumulative)
+            }
+            appendSample(builder, "${name}_sum", labels, histogram.sum)
+            appendSample(builder, "${name}_count", labels, histogram.count)
+        }
+
+        private fun appendHeader(builder: StringBuilder, name: String, type: String, help: String) {
+            builder.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n')
+            builder.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n')
+        }
+
+        private fun appendSample(builder: StringBuilder, name: String, labels: String?, value: Long) {
+            builder.append(PREFIX).append(name)
+            if (labels != null) builder.append('{').append(labels).append('}')
+            builder.append(' ').append(value).append('\n')
+        }
+
+        private fun hostLabel(host: String): String {
+            val escaped = host.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")
+            return "host=\"$escaped\""
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package com.sd.lib.dldmgr.executor.impl;
+
+import com.sd.lib.dldmgr.BandwidthLimiter;
+import com.sd.lib.dldmgr.TransmitParam;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 超过4GB的文件：长度解析、写入位置、下载量和进度都不能溢出。
+ * http响应体是生成的数据，写入的文件是稀疏文件；完整传输超过4GB的数据时读取生成的输入流，写入丢弃数据的通道
+ */
+public class LargeFileTransferTest
+{
+    /** 5GB，超过{@link Integer#MAX_VALUE}和4GB */
+    private static final long TOTAL = 5L * 1024 * 1024 * 1024;
+    /** 只下载最后这部分数据 */
+    private static final int TAIL_SIZE = 256 * 1024;
+
+    private final BandwidthLimiter[] mLimiters = new BandwidthLimiter[]{new BandwidthLimiter()};
+
+    private LoopbackServer mServer;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mServer = new LoopbackServer();
+        mFile = File.createTempFile("large", ".temp");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        mServer.close();
+        mFile.delete();
+    }
+
+    @Test
+    public void contentLengthAboveIntMax()
+    {
+        final HttpRequest request = HttpRequest.get(mServer.getUrl());
+        try
+        {
+            assertEquals(HttpURLConnection.HTTP_OK, request.code());
+            assertEquals(TOTAL, request.contentLength());
+        } finally
+        {
+            request.disconnect();
+        }
+    }
+
+    @Test
+    public void transferAtOffsetAboveIntMax() throws IOException
+    {
+        final long start = TOTAL - TAIL_SIZE;
+        final HttpRequest request = HttpRequest.get(mServer.getUrl())
+                .header("Range", "bytes=" + start + "-");
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(mFile, "rw");
+        try
+        {
+            assertEquals(HttpURLConnection.HTTP_PARTIAL, request.code());
+            assertEquals(TAIL_SIZE, request.contentLength());
+            assertEquals(TOTAL, HttpDownloader.parseContentRangeTotal(request.header("Content-Range")));
+
+            final long[] count = new long[1];
+            final FileChannel channel = randomAccessFile.getChannel();
+            final long transferred = HttpDownloader.transfer(request.stream(), channel, start, -1, mLimiters, new HttpDownloader.TransferCallback()
+            {
+                @Override
+                public void count(long value)
+                {
+                    count[0] = value;
+                }
+            });
+
+            assertEquals(TAIL_SIZE, transferred);
+            assertEquals(TAIL_SIZE, count[0]);
+            assertEquals(TOTAL, mFile.length());
+
+            final byte[] actual = new byte[TAIL_SIZE];
+            randomAccessFile.seek(start);
+            randomAccessFile.readFully(actual);
+            assertArrayEquals(LoopbackServer.body(start, TAIL_SIZE), actual);
+        } finally
+        {
+            randomAccessFile.close();
+            request.disconnect();
+        }
+    }
+
+    @Test
+    public void transferAboveFourGigabytes() throws IOException
+    {
+        // 不是缓冲区大小的整数倍，最后一次写入不满一个缓冲区
+        final long total = (4L << 30) + 12345;
+        final DiscardFileChannel channel = new DiscardFileChannel();
+        final TransmitParam transmitParam = new TransmitParam();
+        final long[] last = new long[1];
+        final int[] firstRead = new int[1];
+
+        final long transferred = HttpDownloader.transfer(new GeneratedInputStream(total), channel, 0, -1, mLimiters, new HttpDownloader.TransferCallback()
+        {
+            @Override
+            public void count(long value)
+            {
+                assertTrue(value > last[0]);
+                last[0] = value;
+                transmitParam.transmit(total, value);
+            }
+
+            @Override
+            public void onFirstRead()
+            {
+                // 第一次读取到数据时还没有写入
+                assertEquals(0, last[0]);
+                firstRead[0]++;
+            }
+        });
+
+        assertEquals(total, transferred);
+        assertEquals(total, last[0]);
+        assertEquals(1, firstRead[0]);
+        assertEquals(total, channel.mWritten);
+        assertEquals(total, channel.mEnd);
+
+        assertEquals(total, transmitParam.getCurrent());
+        assertEquals(total, transmitParam.getTotal());
+        assertEquals(100, transmitParam.getProgress());
+        assertTrue(transmitParam.isComplete());
+    }
+
+    /**
+     * 返回[length]个字节的输入流，不填充数据，只用于测试长度
+     */
+    private static final class GeneratedInputStream extends InputStream
+    {
+        private long mRemaining;
+
+        public GeneratedInputStream(long length)
+        {
+            mRemaining = length;
+        }
+
+        @Override
+        public int read()
+        {
+            if (mRemaining <= 0)
+                return -1;
+            mRemaining--;
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (mRemaining <= 0)
+                return -1;
+            final int read = (int) Math.min(len, mRemaining);
+            mRemaining -= read;
+            return read;
+        }
+    }
+
+    /**
+     * 丢弃写入数据的文件通道，只记录写入的长度和写入的最大位置
+     */
+    private static final class DiscardFileChannel extends FileChannel
+    {
+        private long mWritten;
+        private long mEnd;
+
+        @Override
+        public int write(ByteBuffer src, long position)
+        {
+            final int length = src.remaining();
+            src.position(src.limit());
+            mWritten += length;
+            mEnd = Math.max(mEnd, position + length);
+            return length;
+        }
+
+        @Override
+        public long size()
+        {
+            return mEnd;
+        }
+
+        @Override
+        public int read(ByteBuffer dst)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int write(ByteBuffer src)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long position()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileChannel position(long newPosition)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileChannel truncate(long size)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void force(boolean metaData)
+        {
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void implCloseChannel()
+        {
+        }
+    }
+
+    /**
+     * 本地回环的http服务器，返回长度为{@link #TOTAL}的生成数据，支持"bytes=start-"格式的Range请求
+     */
+    private static final class LoopbackServer implements Runnable
+    {
+        private final ServerSocket mServerSocket;
+        private final Thread mThread;
+
+        public LoopbackServer() throws IOException
+        {
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            mThread = new Thread(this, "large-file-loopback-server");
+            mThread.start();
+        }
+
+        public String getUrl()
+        {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/large";
+        }
+
+        public void close() throws IOException
+        {
+            mServerSocket.close();
+            try
+            {
+                mThread.join();
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * 返回响应体中从[position]开始的[length]个字节，每个字节是位置的低8位
+         */
+        public static byte[] body(long position, int length)
+        {
+            final byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++)
+            {
+                bytes[i] = (byte) (position + i);
+            }
+            return bytes;
+        }
+
+        @Override
+        public void run()
+        {
+            while (!mServerSocket.isClosed())
+            {
+                try
+                {
+                    final Socket socket = mServerSocket.accept();
+                    try
+                    {
+                        respond(socket);
+                    } finally
+                    {
+                        socket.close();
+                    }
+                } catch (IOException ignored)
+                {
+                }
+            }
+        }
+
+        private static void respond(Socket socket) throws IOException
+        {
+            final String header = readRequestHeader(socket.getInputStream());
+            long start = 0;
+            final int index = header.indexOf("Range: bytes=");
+            if (index >= 0)
+            {
+                final int end = header.indexOf('-', index);
+                start = Long.parseLong(header.substring(index + "Range: bytes=".length(), end).trim());
+            }
+
+            final long length = TOTAL - start;
+            final StringBuilder response = new StringBuilder();
+            if (index >= 0)
+            {
+                response.append("HTTP/1.1 206 Partial Content\r\n")
+                        .append("Content-Range: bytes ").append(start).append('-').append(TOTAL - 1).append('/').append(TOTAL).append("\r\n");
+            } else
+            {
+                response.append("HTTP/1.1 200 OK\r\n");
+            }
+            response.append("Content-Length: ").append(length).append("\r\n")
+                    .append("Connection: close\r\n\r\n");
+
+            final OutputStream output = socket.getOutputStream();
+            output.write(response.toString().getBytes("US-ASCII"));
+
+            // 客户端只读取需要的部分，断开连接之后写入失败
+            final int bufferSize = 64 * 1024;
+            for (long position = start; position < TOTAL; position += bufferSize)
+            {
+                output.write(body(position, (int) Math.min(bufferSize, TOTAL - position)));
+            }
+            output.flush();
+        }
+
+        private static String readRequestHeader(InputStream input) throws IOException
+        {
+            final StringBuilder builder = new StringBuilder();
+            while (!builder.toString().endsWith("\r\n\r\n"))
+            {
+                final int read = input.read();
+                if (read < 0)
+                    break;
+                builder.append((char) read);
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.sd.lib.dldmgr.executor.impl;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TaskSchedulerTest
+{
+    private static final long TIMEOUT = 5;
+
+    /**
+     * 低优先级的任务被抢占之后重新进入等待队列，高优先级的任务结束之后重新执行并且正常结束
+     */
+    @Test
+    public void preemptedTaskRunsAgain() throws InterruptedException
+    {
+        final SchedulePolicy policy = new SchedulePolicy.Builder()
+                .setPreemptive(true)
+                .build();
+        final TaskScheduler scheduler = new TaskScheduler(1, policy);
+        final List<String> events = new CopyOnWriteArrayList<>();
+
+        final BlockingTask low = new BlockingTask("http://example.com/low", 0, events, 1);
+        final BlockingTask high = new BlockingTask("http://example.com/high", 10, events, 0);
+
+        scheduler.submit(low);
+        assertTrue(low.mStarted.await(TIMEOUT, TimeUnit.SECONDS));
+
+        scheduler.submit(high);
+        assertTrue(low.mFinished.await(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(high.mFinished.await(TIMEOUT, TimeUnit.SECONDS));
+
+        assertEquals(2, low.mRunCount);
+        assertEquals(1, high.mRunCount);
+        // 第二次执行没有受到上一次停止的影响
+        assertEquals("[low:preempted, high:finished, low:finished]", events.toString());
+    }
+
+    /**
+     * 等待中和刚开始调度就被取消的任务都要释放下载位置，之后提交的任务可以同时执行到最大数量
+     */
+    @Test
+    public void cancelledTasksReleaseRunningSlots() throws InterruptedException
+    {
+        final int maxRunning = 3;
+        final TaskScheduler scheduler = new TaskScheduler(maxRunning, new SchedulePolicy.Builder().build());
+        final List<String> events = new CopyOnWriteArrayList<>();
+
+        for (int i = 0; i < 50; i++)
+        {
+            final String url = "http://example.com/cancel" + i;
+            scheduler.submit(new BlockingTask(url, 0, events, 1));
+            // 和DefaultDownloadExecutor.cancel()一样，先从调度器移除再停止
+            final TaskScheduler.Task task = scheduler.cancel(url);
+            if (task != null)
+                task.stop();
+        }
+
+        final BlockingTask[] tasks = new BlockingTask[maxRunning];
+        for (int i = 0; i < maxRunning; i++)
+        {
+            tasks[i] = new BlockingTask("http://example.com/final" + i, 0, events, 1);
+            scheduler.submit(tasks[i]);
+        }
+        for (BlockingTask task : tasks)
+        {
+            assertTrue(task.mStarted.await(TIMEOUT, TimeUnit.SECONDS));
+        }
+        for (BlockingTask task : tasks)
+        {
+            task.stop();
+            assertTrue(task.mFinished.await(TIMEOUT, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * 前[blockCount]次执行一直阻塞到被停止，之后的执行立即结束，每次执行使用新的停止信号，和DownloadTask每次执行创建新的下载器一样
+     */
+    private static final class BlockingTask extends TaskScheduler.Task
+    {
+        private final String mName;
+        private final List<String> mEvents;
+        private final int mBlockCount;
+
+        private final CountDownLatch mStarted = new CountDownLatch(1);
+        private final CountDownLatch mFinished = new CountDownLatch(1);
+        private volatile CountDownLatch mStopSignal;
+        private volatile int mRunCount;
+
+        public BlockingTask(String url, int priority, List<String> events, int blockCount)
+        {
+            super(url, priority);
+            mName = url.substring(url.lastIndexOf('/') + 1);
+            mEvents = events;
+            mBlockCount = blockCount;
+        }
+
+        @Override
+        protected boolean execute()
+        {
+            final CountDownLatch stopSignal = new CountDownLatch(1);
+            mStopSignal = stopSignal;
+            mRunCount++;
+            mStarted.countDown();
+
+            if (mRunCount <= mBlockCount)
+            {
+                try
+                {
+                    stopSignal.await(TIMEOUT, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored)
+                {
+                }
+            }
+
+            if (isPreempted())
+            {
+                mEvents.add(mName + ":preempted");
+                return false;
+            }
+
+            mEvents.add(mName + (stopSignal.getCount() == 0 ? ":stopped" : ":finished"));
+            mFinished.countDown();
+            return true;
+        }
+
+        @Override
+        protected void onStop()
+        {
+            final CountDownLatch stopSignal = mStopSignal;
+            if (stopSignal != null)
+                stopSignal.countDown();
+        }
+    }
+}